@@ -230,6 +230,26 @@
       :crux/index-store {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "indexes")}}
       :crux.metrics.cloudwatch/reporter cw-reporter-opts})
 
+   "standalone-rocksdb-prefix-filters"
+   (fn [data-dir]
+     {:crux/tx-log {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "tx-log")}}
+      :crux/document-store {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "doc-store")}}
+      :crux/index-store {:kv-store {:crux/module `rocks/->kv-store
+                                    :db-dir (io/file data-dir "indexes")
+                                    :prefix-filters? true}}
+      :crux.metrics.cloudwatch/reporter cw-reporter-opts})
+
+   "standalone-rocksdb-column-families"
+   (fn [data-dir]
+     {:crux/tx-log {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "tx-log")}}
+      :crux/document-store {:kv-store {:crux/module `rocks/->kv-store
+                                       :db-dir (io/file data-dir "doc-store")
+                                       :column-families? true}}
+      :crux/index-store {:kv-store {:crux/module `rocks/->kv-store
+                                    :db-dir (io/file data-dir "indexes")
+                                    :column-families? true}}
+      :crux.metrics.cloudwatch/reporter cw-reporter-opts})
+
    "standalone-rocksdb-with-metrics"
    (fn [data-dir]
      {:crux/tx-log {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "tx-log")}}
@@ -0,0 +1,47 @@
+(ns crux.bench.jdbc-doc-store
+  (:require [clojure.java.io :as io]
+            [crux.bench :as bench]
+            [crux.codec :as c]
+            [crux.db :as db]
+            [crux.fixtures :as fix]
+            [crux.jdbc :as j]))
+
+(def ^:private dialects
+  {:h2 'crux.jdbc.h2/->dialect
+   :sqlite 'crux.jdbc.sqlite/->dialect})
+
+(def ^:private doc-count 5000)
+
+(defn- ->id-and-docs [prefix]
+  (for [n (range doc-count)
+        :let [doc {:crux.db/id (keyword (str prefix "-" n))
+                   :doc-idx n}]]
+    [(c/new-id doc) doc]))
+
+;; Compares submitting docs one at a time - a round trip or two per
+;; doc - with submitting them in tx-sized batches.
+(defn run-jdbc-doc-store-bench []
+  (bench/with-bench-ns :jdbc-doc-store
+    (doseq [[dialect-name ->dialect] dialects]
+      (fix/with-tmp-dir "jdbc-doc-store" [data-dir]
+        (with-open [connection-pool (j/->connection-pool {:dialect ((requiring-resolve ->dialect) {})
+                                                          :db-spec {:dbname (str (io/file data-dir (name dialect-name)))}})]
+          (let [{:keys [pool dialect]} connection-pool
+                doc-store (j/->JdbcDocumentStore pool dialect)
+                per-doc-docs (->id-and-docs "per-doc")
+                batched-docs (->id-and-docs "batched")]
+            (bench/with-dimensions {:dialect dialect-name}
+              (bench/run-bench :per-doc-submits
+                (doseq [id-and-doc per-doc-docs]
+                  (db/submit-docs doc-store [id-and-doc]))
+                {:success? true, :doc-count doc-count})
+
+              (bench/run-bench :batched-submits
+                (doseq [batch (partition-all 1000 batched-docs)]
+                  (db/submit-docs doc-store batch))
+                {:success? true, :doc-count doc-count})
+
+              (bench/run-bench :batched-resubmits
+                (doseq [batch (partition-all 1000 (concat per-doc-docs batched-docs))]
+                  (db/submit-docs doc-store batch))
+                {:success? true, :doc-count (* 2 doc-count)}))))))))
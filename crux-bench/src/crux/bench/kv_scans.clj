@@ -0,0 +1,50 @@
+(ns crux.bench.kv-scans
+  (:require [clojure.java.io :as io]
+            [crux.api :as crux]
+            [crux.bench :as bench]
+            [crux.db :as db]
+            [crux.fixtures :as fix]))
+
+(def ^:private kv-stores
+  {:rocksdb 'crux.rocksdb/->kv-store
+   :rocksdb-jnr 'crux.rocksdb.jnr/->kv-store
+   :lmdb 'crux.lmdb/->kv-store})
+
+(def ^:private doc-count 50000)
+(def ^:private group-count 100)
+
+(defn- submit-docs [node]
+  (->> (for [doc-batch (->> (for [n (range doc-count)]
+                              [:crux.tx/put {:crux.db/id (keyword (str "doc-" n))
+                                             :n n
+                                             :group (mod n group-count)}])
+                            (partition-all 1000))]
+         (crux/submit-tx node (vec doc-batch)))
+       last
+       (crux/await-tx node)))
+
+;; Iterator-heavy scans over the index store's KV store - av scans walk
+;; every value of an attribute, ave lookups seek to each value's entities.
+(defn run-kv-scan-bench []
+  (bench/with-bench-ns :kv-scans
+    (doseq [[kv-name kv-store] kv-stores]
+      (fix/with-tmp-dir "kv-scans" [data-dir]
+        (with-open [node (crux/start-node {:crux/index-store {:kv-store {:crux/module kv-store
+                                                                          :db-dir (io/file data-dir "indexes")}}})]
+          (bench/with-dimensions {:kv-store kv-name}
+            (bench/run-bench :ingest
+              (submit-docs node)
+              {:success? true, :doc-count doc-count})
+
+            (bench/run-bench :av-scans
+              (dotimes [_ 10]
+                (with-open [index-snapshot (db/open-index-snapshot (:index-store node))]
+                  (dorun (db/av index-snapshot :n nil))))
+              {:success? true})
+
+            (bench/run-bench :ave-lookups
+              (let [db (crux/db node)]
+                (doseq [group (range group-count)]
+                  (crux/q db {:find '[?e]
+                              :where [['?e :group group]]})))
+              {:success? true})))))))
@@ -7,7 +7,9 @@
             [crux.bench.tpch-test :as tpch]
             [crux.bench.ts-devices :as devices]
             [crux.bench.ts-weather :as weather]
-            [crux.bench.watdiv-crux :as watdiv-crux]))
+            [crux.bench.watdiv-crux :as watdiv-crux]
+            [crux.bench.jdbc-doc-store :as jdbc-doc-store]
+            [crux.bench.kv-scans :as kv-scans]))
 
 (defn post-to-slack [results]
   (doto results
@@ -26,6 +28,11 @@
                          (devices/run-devices-bench node))
                        (doto post-to-slack))))
 
+   :ts-devices-ingest (fn [nodes _]
+                        (-> (bench/with-comparison-times
+                              (devices/run-devices-ingest-bench nodes))
+                            (doto post-to-slack)))
+
    :ts-weather (fn [nodes _]
                  (bench/with-nodes [node nodes]
                    (-> (bench/with-comparison-times
@@ -41,6 +48,22 @@
                      (bench/with-comparison-times)
                      (doto post-to-slack)))))
 
+   :watdiv-join-order (fn [nodes _]
+                        (bench/with-nodes [node nodes]
+                          (-> (bench/with-comparison-times
+                                (watdiv-crux/run-watdiv-join-order-bench node {:test-count 100}))
+                              (doto post-to-slack))))
+
+   :jdbc-doc-store (fn [_ _]
+                     (-> (bench/with-comparison-times
+                           (jdbc-doc-store/run-jdbc-doc-store-bench))
+                         (doto post-to-slack)))
+
+   :kv-scans (fn [_ _]
+               (-> (bench/with-comparison-times
+                     (kv-scans/run-kv-scan-bench))
+                   (doto post-to-slack)))
+
    :tpch-stress (fn [nodes {:keys [tpch-query-count tpch-field-count] :as opts}]
                   (bench/with-nodes [node nodes]
                     (-> (bench/with-comparison-times
@@ -69,7 +92,7 @@
 
                          [nil "--tests test1,test2" "Tests to run"
                           :id :selected-tests
-                          :default (set (keys (dissoc bench-tests :tpch-stress)))
+                          :default (set (keys (dissoc bench-tests :tpch-stress :ts-devices-ingest :watdiv-join-order :jdbc-doc-store :kv-scans)))
                           :parse-fn #(into #{} (map keyword (set (string/split % #","))))]
 
                          [nil "--tpch-query-count 20" "Number of queries to run on TPCH stress"
@@ -60,22 +60,24 @@
            *readings-limit* (take *readings-limit*))))))
 
 ;; Submits data from devices database into Crux node.
-(defn submit-ts-devices-data [node]
-  (bench/run-bench :ingest
-    (bench/with-additional-index-metrics node
-      (let [info-tx-ops (vec (for [info-doc @info-docs]
-                               [:crux.tx/put info-doc]))
-            _ (crux/submit-tx node info-tx-ops)
-            last-tx (with-readings-docs
-                      (fn [readings-docs]
-                        (->> readings-docs
-                             (partition-all readings-chunk-size)
-                             (reduce (fn [last-tx chunk]
-                                       (crux/submit-tx node (vec (for [{:keys [reading/time] :as reading-doc} chunk]
-                                                                   [:crux.tx/put reading-doc time]))))
-                                     nil))))]
-        (crux/await-tx node last-tx (Duration/ofMinutes 20))
-        {:success? true}))))
+(defn submit-ts-devices-data
+  ([node] (submit-ts-devices-data node :ingest))
+  ([node bench-type]
+   (bench/run-bench bench-type
+     (bench/with-additional-index-metrics node
+       (let [info-tx-ops (vec (for [info-doc @info-docs]
+                                [:crux.tx/put info-doc]))
+             _ (crux/submit-tx node info-tx-ops)
+             last-tx (with-readings-docs
+                       (fn [readings-docs]
+                         (->> readings-docs
+                              (partition-all readings-chunk-size)
+                              (reduce (fn [last-tx chunk]
+                                        (crux/submit-tx node (vec (for [{:keys [reading/time] :as reading-doc} chunk]
+                                                                    [:crux.tx/put reading-doc time]))))
+                                      nil))))]
+         (crux/await-tx node last-tx (Duration/ofMinutes 20))
+         {:success? true})))))
 
 (defn test-battery-readings [node]
   ;; 10 most recent battery temperature readings for charging devices
@@ -264,7 +266,26 @@
       (test-busiest-devices node)
       (test-min-max-battery-level-per-hour node))))
 
+(defn run-devices-ingest-bench
+  "Compares ingesting the devices dataset, which consists solely of
+  puts, with simple txs indexed straight into the index store against
+  forking the index store for every tx."
+  [nodes]
+  (bench/with-bench-ns :ts-devices-ingest
+    (bench/with-crux-dimensions
+      (doseq [[bench-type fork-all-txs?] [[:ingest false]
+                                          [:ingest-fork-all-txs true]]]
+        (bench/with-nodes [node (->> (for [[node-type ->node] nodes]
+                                       [node-type (fn [data-dir]
+                                                    (-> (->node data-dir)
+                                                        (assoc :crux/tx-ingester {:fork-all-txs? fork-all-txs?})))])
+                                     (into {}))]
+          [(submit-ts-devices-data node bench-type)])))))
+
 (comment
+  (binding [*readings-limit* 1000]
+    (run-devices-ingest-bench (select-keys bench/nodes ["standalone-rocksdb"])))
+
   (binding [*readings-limit* 1000]
     (bench/with-nodes [node (select-keys bench/nodes ["standalone-rocksdb"])]
       (bench/with-bench-ns :ts-devices
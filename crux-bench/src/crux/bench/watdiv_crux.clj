@@ -126,6 +126,28 @@
                          (bench/run-bench (format "query-%d" idx)
                                           {:result-count (count (crux/q (crux/db node) (sparql/sparql->datalog q)))})))))))))))
 
+;; Runs each query with the default greedy join order and with the
+;; cost-based join order search, so the two can be compared query by query.
+(defn run-watdiv-join-order-bench [node {:keys [test-count] :as opts}]
+  (bench/with-bench-ns :watdiv-join-order
+    (bench/with-crux-dimensions
+      (ingest-crux node)
+      (bench/compact-node node)
+
+      (watdiv/with-watdiv-queries watdiv/watdiv-stress-100-1-sparql
+        (fn [queries]
+          (-> queries
+              (cond->> test-count (take test-count))
+              (->> (bench/with-thread-pool opts
+                     (fn [{:keys [idx q]}]
+                       (let [q (sparql/sparql->datalog q)]
+                         (doseq [cost-based-join-order? [false true]]
+                           (bench/with-dimensions {:query-idx idx
+                                                   :cost-based-join-order? cost-based-join-order?}
+                             (bench/run-bench (format "query-%d%s" idx (if cost-based-join-order? "-cost-based" ""))
+                                              {:result-count (count (crux/q (crux/db node)
+                                                                            (assoc q :cost-based-join-order? cost-based-join-order?)))})))))))))))))
+
 (comment
   (def foo-raw-watdiv-results
     (with-redefs [watdiv/watdiv-input-file (io/file "crux-bench/data/watdiv.10.nt")]
@@ -9,6 +9,9 @@
 (defn evict [^ICache cache k]
   (.evict cache k))
 
+(defprotocol CacheStats
+  (cache-stats [cache] "Returns a map of the :hits, :misses and :weight of the cache."))
+
 (defn ->cache
   {::sys/args {:cache-size {:doc "Cache size"
                             :default (* 128 1024)
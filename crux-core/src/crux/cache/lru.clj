@@ -1,10 +1,12 @@
 (ns ^:no-doc crux.cache.lru
-  (:require [crux.io :as cio]
+  (:require [crux.cache :as cache]
+            [crux.io :as cio]
             [crux.system :as sys])
   (:import crux.cache.ICache
+           java.util.concurrent.atomic.AtomicLong
            java.util.concurrent.locks.StampedLock
            java.util.function.Function
-           [java.util LinkedHashMap Map]))
+           [java.util Iterator LinkedHashMap Map Map$Entry]))
 
 (set! *unchecked-math* :warn-on-boxed)
 
@@ -56,3 +58,71 @@
                   (> (.size ^Map this) cache-size)))
         lock (StampedLock.)]
     (->LRUCache cache lock cache-size)))
+
+;; Bounds the total weight of its values rather than their number, and
+;; keeps hit/miss counts. Values for which `f` returns nil aren't
+;; cached.
+(deftype WeightedLRUCache [^LinkedHashMap cache ^StampedLock lock ^long max-weight weigh-fn
+                           ^AtomicLong weight ^AtomicLong hits ^AtomicLong misses]
+  Object
+  (toString [_]
+    (.toString cache))
+
+  ICache
+  (computeIfAbsent [this k stored-key-fn f]
+    (let [v (.valAt this k ::not-found)]
+      (if (= ::not-found v)
+        (let [k (stored-key-fn k)
+              v (f k)]
+          (.incrementAndGet misses)
+          (when (some? v)
+            (cio/with-write-lock lock
+              (when-not (.containsKey cache k)
+                (.put cache k v)
+                (.addAndGet weight (weigh-fn v))
+                (let [^Iterator i (.iterator (.entrySet cache))]
+                  (while (and (> (.get weight) max-weight) (.hasNext i))
+                    (let [^Map$Entry e (.next i)]
+                      (.addAndGet weight (- ^long (weigh-fn (.getValue e))))
+                      (.remove i)))))))
+          v)
+        (do
+          (.incrementAndGet hits)
+          v))))
+
+  (evict [_ k]
+    (cio/with-write-lock lock
+      (when-some [v (.remove cache k)]
+        (.addAndGet weight (- ^long (weigh-fn v))))))
+
+  (valAt [_ k]
+    (cio/with-write-lock lock
+      (.get cache k)))
+
+  (valAt [_ k default]
+    (cio/with-write-lock lock
+      (.getOrDefault cache k default)))
+
+  (count [_]
+    (.size cache))
+
+  (close [_]
+    (cio/with-write-lock lock
+      (.clear cache)
+      (.set weight 0)))
+
+  cache/CacheStats
+  (cache-stats [_]
+    {:hits (.get hits)
+     :misses (.get misses)
+     :weight (.get weight)}))
+
+(defn ->weighted-lru-cache
+  {::sys/args {:max-weight {:doc "Maximum total weight of the cached values"
+                            :default (* 32 1024 1024)
+                            :spec ::sys/nat-int}}}
+  ^crux.cache.ICache [{:keys [^long max-weight weigh-fn]
+                       :or {max-weight (* 32 1024 1024)
+                            weigh-fn (constantly 1)}}]
+  (->WeightedLRUCache (LinkedHashMap. 16 0.75 true) (StampedLock.) max-weight weigh-fn
+                      (AtomicLong.) (AtomicLong.) (AtomicLong.)))
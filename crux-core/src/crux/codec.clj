@@ -412,6 +412,21 @@
       (0 1 2) false
       true)))
 
+(defn ordered-value-buffer?
+  "Whether values of this buffer's type sort by their buffers the same way
+  as they do under `compare` - numbers of the one type and temporal values."
+  [^DirectBuffer buffer]
+  (when (and buffer (pos? (.capacity buffer)))
+    (case (.getByte buffer 0)
+      (5 6 7 12 13 14 15) true
+      false)))
+
+(defn next-value-type-buffer
+  "The smallest buffer sorting after all the values of this buffer's type."
+  ^org.agrona.DirectBuffer [^DirectBuffer buffer]
+  (doto (mem/allocate-unpooled-buffer 1)
+    (.putByte 0 (unchecked-byte (inc (.getByte buffer 0))))))
+
 (defn decode-value-buffer [^DirectBuffer buffer]
   (let [type-id (.getByte buffer 0)]
     (case type-id
@@ -294,6 +294,45 @@
                                   (doto (ArrayList.)
                                     (.addAll (repeat (count indexes) nil))))))
 
+(deftype KeyRangeLayeredVirtualIndex [idx from to ^:unsynchronized-mutable ^long depth]
+  db/Index
+  (seek-values [this k]
+    (if (zero? depth)
+      (when-let [v (db/seek-values idx (if (or (nil? from)
+                                               (and k (pos? (mem/compare-buffers k from))))
+                                         k
+                                         from))]
+        (when (or (nil? to) (neg? (mem/compare-buffers v to)))
+          v))
+      (db/seek-values idx k)))
+
+  (next-values [this]
+    (if (zero? depth)
+      (when-let [v (db/next-values idx)]
+        (when (or (nil? to) (neg? (mem/compare-buffers v to)))
+          v))
+      (db/next-values idx)))
+
+  db/LayeredIndex
+  (open-level [this]
+    (db/open-level idx)
+    (set! depth (inc depth))
+    nil)
+
+  (close-level [this]
+    (db/close-level idx)
+    (set! depth (dec depth))
+    nil)
+
+  (max-depth [this]
+    (db/max-depth idx)))
+
+(defn new-key-range-layered-virtual-index
+  "Restricts the first level of the layered index to the keys in [from, to),
+  either bound being nil when open."
+  [idx from to]
+  (->KeyRangeLayeredVirtualIndex idx from to 0))
+
 (defn layered-idx->seq [idx]
   (when idx
     (let [max-depth (long (db/max-depth idx))
@@ -198,6 +198,28 @@
              (register-cleaner pq cleaner-action))
            (merge-sort-priority-queue->seq pq)))))))
 
+(defn top-k
+  "The first k elements of `(sort comp seq)`, keeping no more than k of them
+  in memory at once."
+  [^Comparator comp ^long k seq]
+  (let [;; ties are broken by position, so this is as stable as `sort`
+        entry-comp (reify Comparator
+                     (compare [_ x y]
+                       (let [diff (.compare comp (nth x 0) (nth y 0))]
+                         (if (zero? diff)
+                           (Long/compare (long (nth x 1)) (long (nth y 1)))
+                           diff))))
+        heap (PriorityQueue. (int (max 1 (min k 1024))) (.reversed ^Comparator entry-comp))]
+    (when (pos? k)
+      (doseq [entry (map vector seq (range))]
+        (cond
+          (< (.size heap) k) (.add heap entry)
+          (neg? (.compare entry-comp entry (.peek heap))) (doto heap
+                                                            (.poll)
+                                                            (.add entry)))))
+    (->> (sort entry-comp heap)
+         (map first))))
+
 (defmacro with-read-lock [lock & body]
   `(let [^StampedLock lock# ~lock
          stamp# (.readLock lock#)]
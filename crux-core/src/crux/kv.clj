@@ -16,6 +16,17 @@
   (new-iterator ^java.io.Closeable [this])
   (get-value [this k]))
 
+(defprotocol KvPrefixSnapshot
+  (new-prefix-iterator ^java.io.Closeable [this]
+    "An iterator that's only ever used to step over keys sharing their
+    first (index id + id) bytes with the key it was last seeked to, so
+    stores with prefix filters can skip what can't match."))
+
+(extend-protocol KvPrefixSnapshot
+  Object
+  (new-prefix-iterator [this]
+    (new-iterator this)))
+
 ;; tag::KvStore[]
 (defprotocol KvStore
   (new-snapshot ^java.io.Closeable [this])
@@ -28,6 +39,19 @@
   (kv-name [this]))
 ;; end::KvStore[]
 
+(defprotocol KvWriteBatch
+  (write-batch [this kvs ks]
+    "Deletes `ks` and stores `kvs` as a single, atomic write, for stores
+    that support it."))
+
+(extend-protocol KvWriteBatch
+  Object
+  (write-batch [this kvs ks]
+    (when (seq ks)
+      (delete this ks))
+    (when (seq kvs)
+      (store this kvs))))
+
 (def args
   {:db-dir {:doc "Directory to store K/V files"
             :required? false
@@ -1,5 +1,6 @@
 (ns ^:no-doc crux.kv.index-store
   (:require [crux.cache :as cache]
+            [crux.cache.lru :as lru]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.io :as cio]
@@ -16,7 +17,8 @@
            crux.api.IndexVersionOutOfSyncException
            java.io.Closeable
            java.nio.ByteOrder
-           [java.util Date HashMap Map NavigableSet TreeSet]
+           [java.util Date Map NavigableSet TreeSet]
+           java.util.concurrent.ConcurrentHashMap
            [java.util.function Function Supplier]
            java.util.concurrent.atomic.AtomicBoolean
            (clojure.lang MapEntry)
@@ -30,6 +32,12 @@
      (get [_]
        (ExpandableDirectByteBuffer.)))))
 
+(def ^:private ^ThreadLocal prefix-buffer-tl
+  (ThreadLocal/withInitial
+   (reify Supplier
+     (get [_]
+       (ExpandableDirectByteBuffer.)))))
+
 ;; NOTE: A buffer returned from an kv/KvIterator can only be assumed
 ;; to be valid until the next call on the same iterator. In practice
 ;; this limitation is only for RocksJNRKv.
@@ -528,6 +536,23 @@
                     (new-prefix-kv-iterator tx-time-mapping-prefix))]
     (latest-completed-tx-i i)))
 
+;; A snapshot's level 1 and 2 iterators are shared by every av, ae and
+;; ave call on it, so a prefix iterator is only valid until the next call
+;; on the same level - its prefix is copied into that level's slot,
+;; allocated from the snapshot's arena and only re-allocated when a
+;; longer prefix comes along.
+
+(def ^:private ^:const min-prefix-slot-size 128)
+
+(defn- copy-to-prefix-slot ^org.agrona.DirectBuffer [arena !slot ^DirectBuffer prefix]
+  (let [length (.capacity prefix)
+        ^MutableDirectBuffer slot (let [^MutableDirectBuffer slot @!slot]
+                                    (if (and slot (<= length (.capacity slot)))
+                                      slot
+                                      (vreset! !slot (mem/allocate-from arena (max length min-prefix-slot-size)))))]
+    (-> (mem/copy-buffer prefix length slot)
+        (mem/limit-buffer length))))
+
 (defrecord KvIndexSnapshot [snapshot
                             close-snapshot?
                             level-1-iterator-delay
@@ -539,6 +564,10 @@
                             ^Map temp-hash-cache
                             cav-cache
                             canonical-buffer-cache
+                            decoded-value-cache
+                            ^Closeable arena
+                            !level-1-prefix
+                            !level-2-prefix
                             ^AtomicBoolean closed?]
   Closeable
   (close [_]
@@ -548,13 +577,17 @@
       (doseq [i [level-1-iterator-delay level-2-iterator-delay entity-as-of-iterator-delay decode-value-iterator-delay cache-iterator-delay]
               :when (realized? i)]
         (cio/try-close @i))
+      (cio/try-close arena)
       (when close-snapshot?
         (cio/try-close snapshot))))
 
   db/IndexSnapshot
+  ;; each call repositions the level's shared iterator, so only the
+  ;; latest prefix per level is live - see `copy-to-prefix-slot`.
   (av [this a min-v]
     (let [attr-buffer (c/->id-buffer a)
-          prefix (encode-av-key-to nil attr-buffer)
+          prefix (->> (encode-av-key-to (.get prefix-buffer-tl) attr-buffer)
+                      (copy-to-prefix-slot arena !level-1-prefix))
           i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
       (some->> (encode-av-key-to (.get seek-buffer-tl)
                                  attr-buffer
@@ -564,7 +597,8 @@
   (ave [this a v min-e entity-resolver-fn]
     (let [attr-buffer (c/->id-buffer a)
           value-buffer (buffer-or-value-buffer v)
-          prefix (encode-ave-key-to nil attr-buffer value-buffer)
+          prefix (->> (encode-ave-key-to (.get prefix-buffer-tl) attr-buffer value-buffer)
+                      (copy-to-prefix-slot arena !level-2-prefix))
           i (new-prefix-kv-iterator @level-2-iterator-delay prefix)]
       (some->> (encode-ave-key-to (.get seek-buffer-tl)
                                   attr-buffer
@@ -579,7 +613,8 @@
 
   (ae [this a min-e]
     (let [attr-buffer (c/->id-buffer a)
-          prefix (encode-ae-key-to nil attr-buffer)
+          prefix (->> (encode-ae-key-to (.get prefix-buffer-tl) attr-buffer)
+                      (copy-to-prefix-slot arena !level-1-prefix))
           i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
       (some->> (encode-ae-key-to (.get seek-buffer-tl)
                                  attr-buffer
@@ -657,10 +692,18 @@
     (if (c/can-decode-value-buffer? value-buffer)
       (c/decode-value-buffer value-buffer)
       (or (.get temp-hash-cache value-buffer)
-          (let [i @decode-value-iterator-delay]
-            (when (advance-iterator-to-hash-cache-value i value-buffer)
-              (cio/with-nippy-thaw-all
-                (some-> (kv/value i) (mem/<-nippy-buffer))))))))
+          (some-> (cache/compute-if-absent
+                   decoded-value-cache
+                   value-buffer
+                   mem/copy-to-unpooled-buffer
+                   (fn [_]
+                     (let [i @decode-value-iterator-delay]
+                       (when (advance-iterator-to-hash-cache-value i value-buffer)
+                         (when-let [^DirectBuffer nippy-buffer (kv/value i)]
+                           (MapEntry/create (cio/with-nippy-thaw-all
+                                              (mem/<-nippy-buffer nippy-buffer))
+                                            (.capacity nippy-buffer)))))))
+                  (key)))))
 
   (encode-value [this value]
     (let [value-buffer (c/->value-buffer value)]
@@ -708,7 +751,7 @@
           :else latest-tx))))
 
   (open-nested-index-snapshot [this]
-    (let [nested-index-snapshot (new-kv-index-snapshot snapshot temp-hash-cache cav-cache canonical-buffer-cache false)]
+    (let [nested-index-snapshot (new-kv-index-snapshot snapshot temp-hash-cache cav-cache canonical-buffer-cache decoded-value-cache false)]
       (swap! nested-index-snapshot-state conj nested-index-snapshot)
       nested-index-snapshot)))
 
@@ -734,11 +777,12 @@
              (conj (MapEntry/create (encode-hash-cache-key-to nil value-buffer eid-value-buffer) (mem/->nippy-buffer v)))))
          (apply concat))))
 
-(defn- new-kv-index-snapshot [snapshot temp-hash-cache cav-cache canonical-buffer-cache close-snapshot?]
+(defn- new-kv-index-snapshot [snapshot temp-hash-cache cav-cache canonical-buffer-cache decoded-value-cache close-snapshot?]
   (->KvIndexSnapshot snapshot
                      close-snapshot?
-                     (delay (kv/new-iterator snapshot))
-                     (delay (kv/new-iterator snapshot))
+                     ;; level 1/2 iterators only serve av, ae and ave prefix scans
+                     (delay (kv/new-prefix-iterator snapshot))
+                     (delay (kv/new-prefix-iterator snapshot))
                      (delay (kv/new-iterator snapshot))
                      (delay (kv/new-iterator snapshot))
                      (delay (kv/new-iterator snapshot))
@@ -746,9 +790,14 @@
                      temp-hash-cache
                      cav-cache
                      canonical-buffer-cache
+                     decoded-value-cache
+                     ;; enough for both prefix slots, so most snapshots never take an arena chunk
+                     (mem/->arena (* 2 min-prefix-slot-size))
+                     (volatile! nil)
+                     (volatile! nil)
                      (AtomicBoolean.)))
 
-(defrecord KvIndexStore [kv-store cav-cache canonical-buffer-cache]
+(defrecord KvIndexStore [kv-store cav-cache canonical-buffer-cache decoded-value-cache]
   db/IndexStore
   (index-docs [this docs]
     (let [crux-db-id (c/->id-buffer :crux.db/id)
@@ -810,6 +859,8 @@
                                                                             count)
                                                                        1)]
                                                      (cache/evict cav-cache (.content-hash quad))
+                                                     (when-not (c/can-decode-value-buffer? value-buffer)
+                                                       (cache/evict decoded-value-cache value-buffer))
                                                      (cond-> acc
                                                        true (update :tombstones assoc (.content-hash quad) {:crux.db/id (c/new-id eid)
                                                                                                             :crux.db/evicted? true})
@@ -867,7 +918,8 @@
       (some? (kv/get-value snapshot (encode-failed-tx-id-key-to nil tx-id)))))
 
   (open-index-snapshot [this]
-    (new-kv-index-snapshot (kv/new-snapshot kv-store) (HashMap.) cav-cache canonical-buffer-cache true))
+    ;; shared with nested snapshots, which parallel queries use from several threads
+    (new-kv-index-snapshot (kv/new-snapshot kv-store) (ConcurrentHashMap.) cav-cache canonical-buffer-cache decoded-value-cache true))
 
   status/Status
   (status-map [this]
@@ -875,11 +927,110 @@
      :crux.doc-log/consumer-state (db/read-index-meta this :crux.doc-log/consumer-state)
      :crux.tx-log/consumer-state (db/read-index-meta this :crux.tx-log/consumer-state)}))
 
+;;;; Bulk load
+
+(defn bulk-put-kvs
+  "The index KVs written for a tx made up of the given conformed
+  `:crux.tx/put` ops, none with an end valid time. For offline bulk
+  loads into an empty index store only - unlike the tx ingester, this
+  doesn't look at anything already indexed."
+  [{:crux.tx/keys [tx-id tx-time]} puts]
+  (concat (->content-idx-kvs (into {} (mapcat :docs) puts))
+          (->> (for [{:keys [eid doc-id start-valid-time]} puts]
+                 (c/->EntityTx (c/new-id eid) (or start-valid-time tx-time) tx-time tx-id doc-id))
+               (mapcat etx->kvs))
+          [(MapEntry/create (encode-tx-time-mapping-key-to nil tx-time tx-id) mem/empty-buffer)]))
+
+;;;; Group commit
+
+;; Writes are buffered in memory until flushed, so that the KVs of
+;; several consecutive transactions go to the underlying KV store in a
+;; single `kv/store` call. Only `get-value` sees buffered writes -
+;; iterators (and hence `latest-completed-tx`) only see flushed KVs, so
+;; callers are responsible for flushing before reading anything they
+;; may have written.
+
+(defrecord GroupCommitKvSnapshot [snapshot pending]
+  kv/KvSnapshot
+  (new-iterator [_]
+    (kv/new-iterator snapshot))
+
+  (get-value [_ k]
+    (or (get pending (mem/as-buffer k))
+        (kv/get-value snapshot k)))
+
+  Closeable
+  (close [_]
+    (cio/try-close snapshot)))
+
+(defn- flush-pending-kvs [kv-store !pending]
+  (when-let [kvs (not-empty @!pending)]
+    (kv/store kv-store kvs)
+    (reset! !pending (sorted-map-by mem/buffer-comparator))))
+
+(defrecord GroupCommitKvStore [kv-store !pending]
+  kv/KvStore
+  (new-snapshot [this]
+    (locking this
+      (->GroupCommitKvSnapshot (kv/new-snapshot kv-store) @!pending)))
+
+  (store [this kvs]
+    (locking this
+      (swap! !pending into (for [[k v] kvs]
+                             (MapEntry/create (mem/copy-to-unpooled-buffer (mem/as-buffer k))
+                                              (mem/copy-to-unpooled-buffer (mem/as-buffer v))))))
+    nil)
+
+  (delete [this ks]
+    (locking this
+      (let [ks (map mem/as-buffer ks)]
+        (kv/write-batch kv-store (apply dissoc @!pending ks) ks))
+      (reset! !pending (sorted-map-by mem/buffer-comparator))))
+
+  (fsync [_]
+    (kv/fsync kv-store))
+
+  (compact [_]
+    (kv/compact kv-store))
+
+  (count-keys [_]
+    (kv/count-keys kv-store))
+
+  (db-dir [_]
+    (kv/db-dir kv-store))
+
+  (kv-name [_]
+    (kv/kv-name kv-store)))
+
+(defn ->group-commit-index-store
+  "Returns a view of the given KvIndexStore which buffers its writes until `flush-group-commit` is called."
+  [index-store]
+  (when-not (instance? KvIndexStore index-store)
+    (throw (err/illegal-arg :group-commit-unsupported
+                            {::err/message "Group commit is only supported by the KV index store"})))
+  (update index-store :kv-store ->GroupCommitKvStore (atom (sorted-map-by mem/buffer-comparator))))
+
+(defn flush-group-commit [index-store]
+  (let [kv-store (:kv-store index-store)]
+    (when (instance? GroupCommitKvStore kv-store)
+      (locking kv-store
+        (flush-pending-kvs (:kv-store kv-store) (:!pending kv-store))))))
+
+(defn ->decoded-value-cache
+  {::sys/args {:max-bytes {:doc "Maximum total size of the cached values, as nippy-encoded in the hash-cache index"
+                           :default (* 32 1024 1024)
+                           :spec ::sys/nat-int}}}
+  ^crux.cache.ICache [{:keys [max-bytes]}]
+  (lru/->weighted-lru-cache {:max-weight max-bytes
+                             :weigh-fn (fn [^MapEntry e]
+                                         (.val e))}))
+
 (defn ->kv-index-store {::sys/deps {:kv-store 'crux.mem-kv/->kv-store
                                     :cav-cache 'crux.cache/->cache
-                                    :canonical-buffer-cache 'crux.cache/->cache}
+                                    :canonical-buffer-cache 'crux.cache/->cache
+                                    :decoded-value-cache 'crux.kv.index-store/->decoded-value-cache}
                         ::sys/args {:skip-index-version-bump {:spec (s/tuple int? int?)
                                                               :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}}}
-  [{:keys [kv-store cav-cache canonical-buffer-cache] :as opts}]
+  [{:keys [kv-store cav-cache canonical-buffer-cache decoded-value-cache] :as opts}]
   (check-and-store-index-version opts)
-  (->KvIndexStore kv-store cav-cache canonical-buffer-cache))
+  (->KvIndexStore kv-store cav-cache canonical-buffer-cache decoded-value-cache))
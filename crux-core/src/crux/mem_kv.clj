@@ -11,7 +11,9 @@
             [crux.io :as cio]
             [crux.kv.index-store :as kvi])
   (:import [clojure.lang Box MapEntry]
+           [crux.mem_kv OffHeapSkipList OffHeapSkipList$ChunkAllocator OffHeapSkipList$Cursor]
            java.io.Closeable
+           java.nio.ByteBuffer
            java.nio.file.Path))
 
 (defn- persist-db [dir db]
@@ -131,3 +133,123 @@
          kv-store (map->MemKv {:!db (atom db)})]
      (cond-> kv-store
        checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format}))))))
+
+;;;; Off-heap skip list
+
+;; NOTE: Keys and values live in arena chunks owned by the skip list,
+;; writes append new versions rather than replacing nodes, and a
+;; snapshot is just the last committed sequence number. Memory is only
+;; reclaimed once the whole store is closed (or unreachable), so this
+;; suits short-lived stores (like the per-tx forks) better than
+;; long-lived ones with a lot of churn.
+
+(defrecord SkipListKvIterator [^OffHeapSkipList$Cursor cursor]
+  kv/KvIterator
+  (seek [_ k]
+    (.seek cursor (mem/as-buffer k)))
+
+  (next [_]
+    (.next cursor))
+
+  (prev [_]
+    (.prev cursor))
+
+  (value [_]
+    (.value cursor))
+
+  Closeable
+  (close [_]))
+
+(defrecord SkipListKvSnapshot [^OffHeapSkipList skip-list ^long sequence]
+  kv/KvSnapshot
+  (new-iterator [_]
+    (->SkipListKvIterator (.cursor skip-list sequence)))
+
+  (get-value [_ k]
+    (.get skip-list (mem/as-buffer k) sequence))
+
+  Closeable
+  (close [_]))
+
+(defn- skip-list-entries [^OffHeapSkipList skip-list]
+  (let [cursor (.cursor skip-list (.sequence skip-list))]
+    (loop [k (.seek cursor mem/empty-buffer)
+           acc (transient [])]
+      (if k
+        (let [acc (conj! acc (MapEntry/create (mem/copy-to-unpooled-buffer k)
+                                              (mem/copy-to-unpooled-buffer (.value cursor))))]
+          (recur (.next cursor) acc))
+        (persistent! acc)))))
+
+(defrecord SkipListKv [^OffHeapSkipList skip-list cp-job]
+  kv/KvStore
+  (new-snapshot [_]
+    (->SkipListKvSnapshot skip-list (.sequence skip-list)))
+
+  (store [_ kvs]
+    (locking skip-list
+      (doseq [[k v] kvs]
+        (.put skip-list (mem/as-buffer k) (mem/as-buffer v)))
+      (.commit skip-list))
+    nil)
+
+  (delete [_ ks]
+    (locking skip-list
+      (doseq [k ks]
+        (.delete skip-list (mem/as-buffer k)))
+      (.commit skip-list))
+    nil)
+
+  (compact [_])
+
+  (fsync [_]
+    (log/debug "Using fsync on SkipListKv has no effect."))
+
+  (count-keys [_]
+    (.keyCount skip-list))
+
+  (db-dir [_] nil)
+
+  (kv-name [this]
+    (.getName (class this)))
+
+  cp/CheckpointSource
+  (save-checkpoint [this dir]
+    (persist-db dir (skip-list-entries skip-list))
+    {:tx (kvi/latest-completed-tx this)})
+
+  Closeable
+  (close [_]
+    (cio/try-close cp-job)
+    (.close skip-list)))
+
+;; Short-lived stores (the per-tx forks) draw their chunks from the
+;; arena free list in crux.memory, and give them back when they're
+;; closed, rather than allocating fresh direct buffers every tx.
+
+(def ^:private arena-chunk-allocator
+  (reify OffHeapSkipList$ChunkAllocator
+    (allocate [_ min-size]
+      (if (<= min-size mem/arena-chunk-size)
+        (mem/acquire-arena-chunk)
+        (ByteBuffer/allocateDirect min-size)))
+
+    (release [_ chunk]
+      (when (= mem/arena-chunk-size (.capacity chunk))
+        (mem/release-arena-chunk chunk)))))
+
+(defn ->skip-list-kv-store {::sys/deps {:checkpointer (fn [_])}}
+  ([] (->skip-list-kv-store {}))
+
+  ([{:keys [checkpointer db-dir pooled-chunks?]}]
+   (let [skip-list (if pooled-chunks?
+                     (OffHeapSkipList. arena-chunk-allocator)
+                     (OffHeapSkipList.))
+         kv-store (map->SkipListKv {:skip-list skip-list})]
+     (when-let [db (or (when db-dir
+                         (restore-db db-dir))
+                       (when checkpointer
+                         (try-restore-from-checkpoint checkpointer)))]
+       (kv/store kv-store db))
+     (cond-> kv-store
+       checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format}))))))
@@ -0,0 +1,407 @@
+package crux.mem_kv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import org.agrona.DirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import crux.ByteUtils;
+
+/**
+ * Sorted, multi-versioned skip list storing its nodes, keys and values
+ * in off-heap arena chunks.
+ *
+ * Writes are single-writer (callers synchronise on the list), reads
+ * are lock-free. Every write is tagged with the sequence number of
+ * the batch it belongs to, nodes are ordered by key ascending and
+ * sequence descending, and a snapshot is just the last committed
+ * sequence number. Overwritten and deleted entries are kept until the
+ * list is closed, which gives its chunks back to its allocator - no
+ * snapshot, cursor or buffer returned by one may be used after that.
+ * Reads after close throw, but a read racing close isn't guarded
+ * against, so callers have to stop reading before closing.
+ */
+public final class OffHeapSkipList implements AutoCloseable {
+    private static final int MAX_HEIGHT = 20;
+    private static final int BRANCHING_FACTOR = 4;
+    private static final int INITIAL_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int ALIGNMENT_MASK = Long.BYTES - 1;
+
+    private static final int HEIGHT_OFFSET = 0;
+    private static final int KEY_LENGTH_OFFSET = 4;
+    private static final int VALUE_LENGTH_OFFSET = 8;
+    private static final int SEQUENCE_OFFSET = 16;
+    private static final int NEXT_OFFSET = 24;
+    private static final int TOMBSTONE = -1;
+
+    // The head node lives at chunk 0, offset 0, and is never the
+    // successor of another node, so its pointer doubles as null.
+    private static final long NULL = 0L;
+    private static final long HEAD = 0L;
+
+    /**
+     * Source of the list's chunks. A chunk may be larger than asked for,
+     * and is given back when the list is closed.
+     */
+    public interface ChunkAllocator {
+        ByteBuffer allocate(int minSize);
+
+        void release(ByteBuffer chunk);
+    }
+
+    /**
+     * Fresh direct buffers, doubling in size up to MAX_CHUNK_SIZE, left
+     * to the GC rather than released.
+     */
+    private static final class GrowingChunkAllocator implements ChunkAllocator {
+        private int chunkSize = INITIAL_CHUNK_SIZE;
+
+        @Override public ByteBuffer allocate(final int minSize) {
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, minSize));
+            chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+            return chunk;
+        }
+
+        @Override public void release(final ByteBuffer chunk) {
+        }
+    }
+
+    private final ChunkAllocator allocator;
+    private volatile UnsafeBuffer[] chunks = new UnsafeBuffer[0];
+    private volatile int height = 1;
+    private volatile long sequence = 0L;
+    private volatile long keyCount = 0L;
+    private volatile long allocatedBytes = 0L;
+    private volatile boolean closed = false;
+
+    private int chunkPosition = 0;
+    private long writeSequence = 1L;
+    private final long[] prev = new long[MAX_HEIGHT];
+    private final UnsafeBuffer writeView = new UnsafeBuffer(0, 0);
+
+    public OffHeapSkipList() {
+        this(new GrowingChunkAllocator());
+    }
+
+    public OffHeapSkipList(final ChunkAllocator allocator) {
+        this.allocator = allocator;
+        final int headSize = NEXT_OFFSET + MAX_HEIGHT * Long.BYTES;
+        final long head = allocate(headSize);
+        // pooled chunks aren't zeroed, and the head's pointers have to start out null
+        chunk(head).setMemory(offset(head), headSize, (byte) 0);
+    }
+
+    public long sequence() {
+        return this.sequence;
+    }
+
+    public long keyCount() {
+        return this.keyCount;
+    }
+
+    public long allocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    public synchronized void put(final DirectBuffer key, final DirectBuffer value) {
+        if (!isLive(key, Long.MAX_VALUE, writeView)) {
+            keyCount++;
+        }
+        insert(key, value);
+    }
+
+    public synchronized void delete(final DirectBuffer key) {
+        if (isLive(key, Long.MAX_VALUE, writeView)) {
+            keyCount--;
+            insert(key, null);
+        }
+    }
+
+    /**
+     * Makes all puts and deletes since the last commit visible to new
+     * snapshots at once.
+     */
+    public synchronized void commit() {
+        this.sequence = writeSequence;
+        writeSequence++;
+    }
+
+    public DirectBuffer get(final DirectBuffer key, final long sequence) {
+        checkOpen();
+        final UnsafeBuffer view = new UnsafeBuffer(0, 0);
+        final long node = findGreaterOrEqual(key, sequence, null, view);
+        if (node == NULL || isTombstone(node) || !hasKey(node, key, view)) {
+            return null;
+        }
+        wrapValue(node, view);
+        return view;
+    }
+
+    public Cursor cursor(final long sequence) {
+        return new Cursor(this, sequence);
+    }
+
+    @Override public synchronized void close() {
+        closed = true;
+        final UnsafeBuffer[] chunks = this.chunks;
+        this.chunks = new UnsafeBuffer[0];
+        for (final UnsafeBuffer chunk : chunks) {
+            allocator.release(chunk.byteBuffer());
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Skip list closed");
+        }
+    }
+
+    private long allocate(final int size) {
+        final int alignedSize = (size + ALIGNMENT_MASK) & ~ALIGNMENT_MASK;
+        UnsafeBuffer[] chunks = this.chunks;
+        if (chunks.length == 0 || chunkPosition + alignedSize > chunks[chunks.length - 1].capacity()) {
+            final UnsafeBuffer chunk = new UnsafeBuffer(allocator.allocate(alignedSize));
+            final UnsafeBuffer[] newChunks = new UnsafeBuffer[chunks.length + 1];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            newChunks[chunks.length] = chunk;
+            this.chunks = chunks = newChunks;
+            this.allocatedBytes += chunk.capacity();
+            chunkPosition = 0;
+        }
+        final long node = ((long) (chunks.length - 1) << 32) | chunkPosition;
+        chunkPosition += alignedSize;
+        return node;
+    }
+
+    private void insert(final DirectBuffer key, final DirectBuffer value) {
+        findGreaterOrEqual(key, writeSequence, prev, writeView);
+
+        final int nodeHeight = randomHeight();
+        if (nodeHeight > height) {
+            for (int i = height; i < nodeHeight; i++) {
+                prev[i] = HEAD;
+            }
+            height = nodeHeight;
+        }
+
+        final int keyLength = key.capacity();
+        final int valueLength = value == null ? TOMBSTONE : value.capacity();
+        final int nextSize = nodeHeight * Long.BYTES;
+        final long node = allocate(NEXT_OFFSET + nextSize + keyLength + Math.max(valueLength, 0));
+        final UnsafeBuffer chunk = chunk(node);
+        final int offset = offset(node);
+
+        chunk.putInt(offset + HEIGHT_OFFSET, nodeHeight);
+        chunk.putInt(offset + KEY_LENGTH_OFFSET, keyLength);
+        chunk.putInt(offset + VALUE_LENGTH_OFFSET, valueLength);
+        chunk.putLong(offset + SEQUENCE_OFFSET, writeSequence);
+        chunk.putBytes(offset + NEXT_OFFSET + nextSize, key, 0, keyLength);
+        if (value != null) {
+            chunk.putBytes(offset + NEXT_OFFSET + nextSize + keyLength, value, 0, valueLength);
+        }
+
+        for (int i = 0; i < nodeHeight; i++) {
+            chunk.putLong(offset + NEXT_OFFSET + i * Long.BYTES, next(prev[i], i));
+            chunk(prev[i]).putLongOrdered(offset(prev[i]) + NEXT_OFFSET + i * Long.BYTES, node);
+        }
+    }
+
+    private static int randomHeight() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int height = 1;
+        while (height < MAX_HEIGHT && random.nextInt(BRANCHING_FACTOR) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private UnsafeBuffer chunk(final long node) {
+        return chunks[(int) (node >>> 32)];
+    }
+
+    private static int offset(final long node) {
+        return (int) node;
+    }
+
+    private long next(final long node, final int level) {
+        return chunk(node).getLongVolatile(offset(node) + NEXT_OFFSET + level * Long.BYTES);
+    }
+
+    private long sequenceOf(final long node) {
+        return chunk(node).getLong(offset(node) + SEQUENCE_OFFSET);
+    }
+
+    private boolean isTombstone(final long node) {
+        return chunk(node).getInt(offset(node) + VALUE_LENGTH_OFFSET) == TOMBSTONE;
+    }
+
+    private void wrapKey(final long node, final UnsafeBuffer view) {
+        final UnsafeBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        final int nodeHeight = chunk.getInt(offset + HEIGHT_OFFSET);
+        view.wrap(chunk, offset + NEXT_OFFSET + nodeHeight * Long.BYTES, chunk.getInt(offset + KEY_LENGTH_OFFSET));
+    }
+
+    private void wrapValue(final long node, final UnsafeBuffer view) {
+        final UnsafeBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        final int nodeHeight = chunk.getInt(offset + HEIGHT_OFFSET);
+        final int keyLength = chunk.getInt(offset + KEY_LENGTH_OFFSET);
+        view.wrap(chunk, offset + NEXT_OFFSET + nodeHeight * Long.BYTES + keyLength, chunk.getInt(offset + VALUE_LENGTH_OFFSET));
+    }
+
+    private boolean hasKey(final long node, final DirectBuffer key, final UnsafeBuffer view) {
+        wrapKey(node, view);
+        return ByteUtils.equalBuffers(view, key);
+    }
+
+    private int compare(final long node, final DirectBuffer key, final long sequence, final UnsafeBuffer view) {
+        wrapKey(node, view);
+        final int diff = ByteUtils.compareBuffers(view, key);
+        if (diff != 0) {
+            return diff;
+        }
+        return Long.compare(sequence, sequenceOf(node));
+    }
+
+    private boolean isLive(final DirectBuffer key, final long sequence, final UnsafeBuffer view) {
+        final long node = findGreaterOrEqual(key, sequence, null, view);
+        return node != NULL && !isTombstone(node) && hasKey(node, key, view);
+    }
+
+    private long findGreaterOrEqual(final DirectBuffer key, final long sequence, final long[] prev, final UnsafeBuffer view) {
+        long node = HEAD;
+        int level = height - 1;
+        while (true) {
+            final long next = next(node, level);
+            if (next != NULL && compare(next, key, sequence, view) < 0) {
+                node = next;
+            } else {
+                if (prev != null) {
+                    prev[level] = node;
+                }
+                if (level == 0) {
+                    return next;
+                }
+                level--;
+            }
+        }
+    }
+
+    private long findLessThan(final DirectBuffer key, final UnsafeBuffer view) {
+        long node = HEAD;
+        int level = height - 1;
+        while (true) {
+            final long next = next(node, level);
+            if (next != NULL && compare(next, key, Long.MAX_VALUE, view) < 0) {
+                node = next;
+            } else if (level == 0) {
+                return node;
+            } else {
+                level--;
+            }
+        }
+    }
+
+    /**
+     * Iterates over the live keys as of a sequence number. Keys and
+     * values are returned as views straight into the arena - the cursor
+     * re-points the same two views on every move, so a key or value is
+     * only valid until the next seek, next or prev, and copies have to
+     * be taken of anything kept longer.
+     */
+    public static final class Cursor {
+        private final OffHeapSkipList list;
+        private final long sequence;
+        private final UnsafeBuffer compareView = new UnsafeBuffer(0, 0);
+        private UnsafeBuffer keyView = new UnsafeBuffer(0, 0);
+        private UnsafeBuffer otherKeyView = new UnsafeBuffer(0, 0);
+        private final UnsafeBuffer resultKeyView = new UnsafeBuffer(0, 0);
+        private final UnsafeBuffer resultValueView = new UnsafeBuffer(0, 0);
+        private long node = NULL;
+
+        private Cursor(final OffHeapSkipList list, final long sequence) {
+            this.list = list;
+            this.sequence = sequence;
+        }
+
+        public DirectBuffer seek(final DirectBuffer key) {
+            list.checkOpen();
+            node = visibleFrom(list.findGreaterOrEqual(key, sequence, null, compareView));
+            return key();
+        }
+
+        public DirectBuffer next() {
+            list.checkOpen();
+            if (node == NULL) {
+                return null;
+            }
+            node = visibleFrom(skipKey(node));
+            return key();
+        }
+
+        public DirectBuffer prev() {
+            list.checkOpen();
+            if (node == NULL) {
+                return null;
+            }
+            list.wrapKey(node, keyView);
+            while (true) {
+                final long candidate = list.findLessThan(keyView, compareView);
+                if (candidate == HEAD) {
+                    node = NULL;
+                    return null;
+                }
+                list.wrapKey(candidate, otherKeyView);
+                final long visible = list.findGreaterOrEqual(otherKeyView, sequence, null, compareView);
+                if (visible != NULL && !list.isTombstone(visible) && list.hasKey(visible, otherKeyView, compareView)) {
+                    node = visible;
+                    return key();
+                }
+                final UnsafeBuffer tmp = keyView;
+                keyView = otherKeyView;
+                otherKeyView = tmp;
+            }
+        }
+
+        public DirectBuffer key() {
+            list.checkOpen();
+            if (node == NULL) {
+                return null;
+            }
+            list.wrapKey(node, resultKeyView);
+            return resultKeyView;
+        }
+
+        public DirectBuffer value() {
+            list.checkOpen();
+            if (node == NULL) {
+                return null;
+            }
+            list.wrapValue(node, resultValueView);
+            return resultValueView;
+        }
+
+        private long skipKey(final long node) {
+            list.wrapKey(node, keyView);
+            long next = list.next(node, 0);
+            while (next != NULL && list.hasKey(next, keyView, compareView)) {
+                next = list.next(next, 0);
+            }
+            return next;
+        }
+
+        private long visibleFrom(long node) {
+            while (node != NULL) {
+                if (list.sequenceOf(node) > sequence) {
+                    node = list.next(node, 0);
+                } else if (list.isTombstone(node)) {
+                    node = skipKey(node);
+                } else {
+                    return node;
+                }
+            }
+            return NULL;
+        }
+    }
+}
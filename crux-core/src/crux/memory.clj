@@ -4,9 +4,10 @@
             [clojure.tools.logging :as log]
             [crux.io :as cio]
             [taoensso.nippy :as nippy])
-  (:import [java.io DataInputStream DataOutputStream]
+  (:import [java.io Closeable DataInputStream DataOutputStream]
            java.nio.ByteBuffer
-           java.util.Comparator
+           [java.util ArrayList Comparator]
+           java.util.concurrent.ArrayBlockingQueue
            java.util.function.Supplier
            [org.agrona DirectBuffer ExpandableDirectByteBuffer MutableDirectBuffer]
            org.agrona.concurrent.UnsafeBuffer
@@ -29,7 +30,9 @@
 (def ^:private ^:const default-chunk-size (* 128 1024))
 (def ^:private ^:const large-buffer-size (quot default-chunk-size 4))
 (defonce ^:private pool-allocation-stats (atom {:allocated 0
-                                                :deallocated 0}))
+                                                :deallocated 0
+                                                :arena-acquired 0
+                                                :arena-released 0}))
 
 (defn- log-pool-memory [{:keys [allocated deallocated] :as pool-allocation-stats}]
   (log/debug :pool-allocation-stats (assoc pool-allocation-stats :in-use (- (long allocated) (long deallocated)))))
@@ -54,9 +57,18 @@
 
 (def ^:private ^:const alignment-round-mask 0xf)
 
+(defn- slice-chunk ^org.agrona.MutableDirectBuffer [^ByteBuffer chunk ^long size]
+  ;; TODO: This limit is safer if the byte buffer itself is used,
+  ;; but slower.
+  (let [offset (.position chunk)
+        buffer (.limit (.slice chunk) size)
+        new-aligned-offset (bit-and (+ offset size alignment-round-mask)
+                                    (bit-not alignment-round-mask))]
+    (.position chunk new-aligned-offset)
+    (UnsafeBuffer. ^ByteBuffer buffer 0 size)))
+
 (defn allocate-buffer ^org.agrona.MutableDirectBuffer [^long size]
-  (let [chunk ^ByteBuffer (.get chunk-tl)
-        offset (.position chunk)]
+  (let [chunk ^ByteBuffer (.get chunk-tl)]
     (cond
       (> size large-buffer-size)
       (allocate-unpooled-buffer size)
@@ -67,13 +79,98 @@
         (recur size))
 
       :else
-      ;; TODO: This limit is safer if the byte buffer itself is used,
-      ;; but slower.
-      (let [buffer (.limit (.slice chunk) size)
-            new-aligned-offset (bit-and (+ offset size alignment-round-mask)
-                                        (bit-not alignment-round-mask))]
-        (.position chunk new-aligned-offset)
-        (UnsafeBuffer. ^ByteBuffer buffer 0 size)))))
+      (slice-chunk chunk size))))
+
+;;;; Arenas
+
+;; An arena hands out buffers from chunks taken from a shared free
+;; list, and gives all of its chunks back at once when it's closed,
+;; rather than leaving them to the GC and the cleaner thread. Buffers
+;; allocated from an arena mustn't outlive it - their memory will be
+;; reused.
+
+(def ^:const arena-chunk-size (* 32 1024))
+(def ^:private ^:const large-arena-buffer-size (quot arena-chunk-size 4))
+(def ^:private ^:const max-free-arena-chunks 256)
+
+(defonce ^:private ^ArrayBlockingQueue free-arena-chunks (ArrayBlockingQueue. max-free-arena-chunks))
+
+(defn acquire-arena-chunk
+  "An `arena-chunk-size` chunk from the free list - its contents are
+  whatever its last user left in it. Give it back with
+  `release-arena-chunk`."
+  ^java.nio.ByteBuffer []
+  (swap! pool-allocation-stats update :arena-acquired + arena-chunk-size)
+  (or (some-> ^ByteBuffer (.poll free-arena-chunks) (.clear))
+      (allocate-pooled-buffer arena-chunk-size)))
+
+(defn release-arena-chunk [^ByteBuffer chunk]
+  (swap! pool-allocation-stats update :arena-released + arena-chunk-size)
+  ;; when the free list is full, the chunk's left to the GC
+  (.offer free-arena-chunks chunk))
+
+(defprotocol ArenaAllocator
+  (arena-allocate ^org.agrona.MutableDirectBuffer [arena size]))
+
+(deftype Arena [^ArrayList chunks
+                ^:unsynchronized-mutable ^ByteBuffer chunk
+                ^:unsynchronized-mutable closed?]
+  ArenaAllocator
+  (arena-allocate [this size]
+    (let [size (long size)]
+      (locking this
+        (cond
+          (or closed? (> size large-arena-buffer-size))
+          (allocate-buffer size)
+
+          (or (nil? chunk) (> size (.remaining chunk)))
+          (let [new-chunk (acquire-arena-chunk)]
+            (.add chunks new-chunk)
+            (set! chunk new-chunk)
+            (slice-chunk new-chunk size))
+
+          :else
+          (slice-chunk chunk size)))))
+
+  Closeable
+  (close [this]
+    (locking this
+      (when-not closed?
+        (set! closed? true)
+        (set! chunk nil)
+        (run! release-arena-chunk chunks)
+        (.clear chunks)))))
+
+(defn ->arena
+  "A new, empty arena - see `allocate-from`. Closing it frees everything
+  allocated from it.
+
+  With an `initial-size`, the first allocations are sliced from a buffer
+  of that size, taken as `allocate-buffer` would, and chunks only come
+  from the free list once it's used up - so arenas which usually
+  allocate little don't each hold on to a whole chunk."
+  (^java.io.Closeable []
+   (->arena 0))
+  (^java.io.Closeable [^long initial-size]
+   (Arena. (ArrayList.)
+           (when (pos? initial-size)
+             (let [initial-size (bit-and (+ initial-size alignment-round-mask)
+                                         (bit-not alignment-round-mask))]
+               (.byteBuffer (allocate-buffer initial-size))))
+           false)))
+
+(defn allocate-from
+  "Allocates a buffer from the arena, or as `allocate-buffer` without one."
+  ^org.agrona.MutableDirectBuffer [arena ^long size]
+  (if arena
+    (arena-allocate arena size)
+    (allocate-buffer size)))
+
+(defn allocation-stats []
+  (let [{:keys [allocated deallocated arena-acquired arena-released] :as stats} @pool-allocation-stats]
+    (assoc stats
+           :in-use (- (long allocated) (long deallocated))
+           :arena-in-use (- (long arena-acquired) (long arena-released)))))
 
 (defn copy-buffer
   (^org.agrona.MutableDirectBuffer [^DirectBuffer from]
@@ -87,6 +184,9 @@
 (defn copy-to-unpooled-buffer ^org.agrona.MutableDirectBuffer [^DirectBuffer from]
   (copy-buffer from (.capacity from) (allocate-unpooled-buffer (.capacity from))))
 
+(defn copy-to-arena ^org.agrona.MutableDirectBuffer [arena ^DirectBuffer from]
+  (copy-buffer from (.capacity from) (allocate-from arena (.capacity from))))
+
 (defn slice-buffer ^org.agrona.MutableDirectBuffer [^DirectBuffer buffer ^long offset ^long limit]
   (UnsafeBuffer. buffer offset limit))
 
@@ -19,13 +19,16 @@
             [taoensso.nippy :as nippy]
             [edn-query-language.core :as eql]
             [crux.system :as sys]
+            [crux.stats :as stats]
             [clojure.pprint :as pp])
   (:import [clojure.lang Box ExceptionInfo]
            (crux.api ICruxDatasource HistoryOptions HistoryOptions$SortOrder)
            crux.codec.EntityTx
            (java.io Closeable Writer)
            (java.util Collection Comparator Date List UUID)
-           (java.util.concurrent Future Executors ScheduledExecutorService TimeoutException TimeUnit)))
+           (java.util.concurrent ArrayBlockingQueue BlockingQueue CountDownLatch Future Executors ForkJoinPool
+                                 ScheduledExecutorService TimeoutException TimeUnit)
+           java.util.concurrent.atomic.AtomicBoolean))
 
 (defn logic-var? [x]
   (and (symbol? x)
@@ -149,6 +152,8 @@
 
 (s/def ::timeout nat-int?)
 (s/def ::batch-size pos-int?)
+(s/def ::cost-based-join-order? boolean?)
+(s/def ::parallel? boolean?)
 
 (s/def ::in (s/and vector? (s/cat :source-var (s/? '#{$})
                                   :bindings (s/* ::binding))))
@@ -215,7 +220,7 @@
 
 (s/def ::query (s/and (s/conformer #'normalize-query)
                       (s/keys :req-un [::find]
-                              :opt-un [::where ::in ::args ::rules ::offset ::limit ::order-by ::timeout ::full-results? ::batch-size])))
+                              :opt-un [::where ::in ::args ::rules ::offset ::limit ::order-by ::timeout ::full-results? ::batch-size ::cost-based-join-order? ::parallel?])))
 
 (defrecord ConformedQuery [q-normalized q-conformed])
 
@@ -563,7 +568,57 @@
 
 (defn- sort-triple-clauses [stats triple-clauses]
   (sort-by (fn [{:keys [a]}]
-             (get stats a 0)) triple-clauses))
+             (stats/distinct-entities stats a)) triple-clauses))
+
+;; Cost-based join order. The n-ary join is already worst-case optimal
+;; (a leapfrog join per var over the sorted triple indexes), so it's the
+;; var order which decides how many partial bindings it enumerates.
+
+(def ^:private ^:const max-join-order-search-vars 12)
+
+(defn- var-fan-out
+  "Estimated number of bindings for var per binding of the bound vars:
+  the smallest estimate among its clauses, as that's what the join
+  intersects down to."
+  ^double [var bound-vars triple-clauses stats]
+  (->> (for [{:keys [e a v]} triple-clauses
+             :when (or (= var e) (= var v))
+             :let [n (double (get stats a 0))]]
+         (cond
+           (and (= var e) (contains? bound-vars v)) (/ n (stats/distinct-values stats a))
+           (and (= var v) (contains? bound-vars e)) (/ n (stats/distinct-entities stats a))
+           (= var e) (stats/distinct-entities stats a)
+           :else (stats/distinct-values stats a)))
+       (map #(if (Double/isNaN %) 0.0 %))
+       (reduce min Double/MAX_VALUE)
+       (max 1.0)))
+
+(defn- search-join-order
+  "Orders the vars to minimise the estimated total number of partial
+  bindings, by dynamic programming over the subsets of bound vars."
+  [vars bound-literals triple-clauses stats cardinality-for-var]
+  (let [vars (vec vars)
+        n (count vars)
+        subset-count (bit-shift-left 1 n)
+        best (object-array subset-count)]
+    (aset best 0 {:cost 0.0, :rows 1.0, :order []})
+    (dotimes [subset subset-count]
+      (when-let [{:keys [^double cost ^double rows order]} (aget best subset)]
+        (let [bound-vars (into bound-literals order)]
+          (dotimes [idx n]
+            (when-not (bit-test subset idx)
+              (let [var (nth vars idx)
+                    next-subset (bit-set subset idx)
+                    next-rows (* rows (max 1.0 (double (cardinality-for-var var (var-fan-out var bound-vars triple-clauses stats)))))
+                    next-cost (+ cost next-rows)]
+                (when (or (nil? (aget best next-subset))
+                          (< next-cost (double (:cost (aget best next-subset)))))
+                  (aset best next-subset {:cost next-cost
+                                          :rows next-rows
+                                          :order (conj order var)}))))))))
+    (let [{:keys [cost order]} (aget best (dec subset-count))]
+      (log/debug :join-order-search-cost cost)
+      order)))
 
 (defn- new-literal-index [index-snapshot v]
   (let [encode-value-fn (partial db/encode-value index-snapshot)]
@@ -577,7 +632,8 @@
                       pred-clauses :pred
                       :as type->clauses}
                      in-vars
-                     stats]
+                     stats
+                     cost-based-join-order?]
   (let [collected-vars (collect-vars type->clauses)
         pred-var-frequencies (frequencies
                               (for [{:keys [pred return]} pred-clauses
@@ -590,26 +646,39 @@
                                      sym [sym sym-a sym-b]
                                      :when (logic-var? sym)]
                                  sym))
-        cardinality-for-var (fn [var cardinality]
-                              (cond-> (double (cond
-                                                (literal? var)
-                                                0.0
-
-                                                (contains? in-vars var)
-                                                (/ 0.5 (double cardinality))
-
-                                                :else
-                                                cardinality))
-
-                                (or (contains? (:not-vars collected-vars) var)
-                                    (contains? (:pred-return-vars collected-vars) var))
-                                (Math/pow 0.25)
-
-                                (contains? pred-var-frequencies var)
-                                (Math/pow (/ 0.25 (double (get pred-var-frequencies var))))
-
-                                (contains? range-var-frequencies var)
-                                (Math/pow (/ 0.5 (double (get range-var-frequencies var))))))
+        var->range-clauses (group-by :sym range-clauses)
+        range-selectivity (fn [a var]
+                            (let [selectivities (for [{:keys [op val]} (get var->range-clauses var)]
+                                                  (stats/range-selectivity stats a op val))]
+                              (when (and (seq selectivities) (every? some? selectivities))
+                                (reduce * selectivities))))
+        cardinality-for-var (fn cardinality-for-var
+                              ([var cardinality]
+                               (cardinality-for-var var cardinality nil))
+                              ([var cardinality selectivity]
+                               (cond-> (double (cond
+                                                 (literal? var)
+                                                 0.0
+
+                                                 (contains? in-vars var)
+                                                 (/ 0.5 (double cardinality))
+
+                                                 :else
+                                                 cardinality))
+
+                                 (or (contains? (:not-vars collected-vars) var)
+                                     (contains? (:pred-return-vars collected-vars) var))
+                                 (Math/pow 0.25)
+
+                                 (contains? pred-var-frequencies var)
+                                 (Math/pow (/ 0.25 (double (get pred-var-frequencies var))))
+
+                                 selectivity
+                                 (* (double selectivity))
+
+                                 (and (nil? selectivity)
+                                      (contains? range-var-frequencies var))
+                                 (Math/pow (/ 0.5 (double (get range-var-frequencies var)))))))
         update-cardinality (fn [acc {:keys [e a v] :as clause}]
                              (let [{:keys [self-join? ignore-v?]} (meta clause)
                                    cardinality (double (get stats a 0.0))
@@ -621,8 +690,10 @@
                                         self-join?
                                         (Math/nextUp es)
                                         :else
-                                        (cardinality-for-var v (cond->> cardinality
-                                                                 (literal? e) (/ 1.0))))]
+                                        (cardinality-for-var v
+                                                             (cond->> cardinality
+                                                               (literal? e) (/ 1.0))
+                                                             (range-selectivity a v)))]
                                (-> acc
                                    (update v (fnil min Double/MAX_VALUE) vs)
                                    (update e (fnil min Double/MAX_VALUE) es))))
@@ -631,32 +702,40 @@
                                  (group-by :v triple-clauses)
                                  (group-by :e triple-clauses))
         literals (set (filter literal? (keys var->clauses)))
-        join-order (loop [vars (filter logic-var? (map key (sort-by val var->cardinality)))
-                          join-order (vec literals)
-                          reachable-var-groups (list)]
-                     (if (seq vars)
-                       (let [var (first (or (not-empty (for [reachable-var-group reachable-var-groups
-                                                             var (->> (filter reachable-var-group vars)
-                                                                      (partition-by var->cardinality)
-                                                                      (first)
-                                                                      (sort-by (comp count var->clauses))
-                                                                      (reverse))]
+        search-vars (->> (keys var->cardinality)
+                         (filter logic-var?)
+                         (remove #(= Double/MAX_VALUE (var->cardinality %))))
+        join-order (if (and cost-based-join-order?
+                            (<= (count search-vars) max-join-order-search-vars))
+                     (vec (distinct (concat literals
+                                            (search-join-order search-vars literals triple-clauses stats cardinality-for-var)
+                                            (filter logic-var? (map key (sort-by val var->cardinality))))))
+                     (loop [vars (filter logic-var? (map key (sort-by val var->cardinality)))
+                            join-order (vec literals)
+                            reachable-var-groups (list)]
+                       (if (seq vars)
+                         (let [var (first (or (not-empty (for [reachable-var-group reachable-var-groups
+                                                               var (->> (filter reachable-var-group vars)
+                                                                        (partition-by var->cardinality)
+                                                                        (first)
+                                                                        (sort-by (comp count var->clauses))
+                                                                        (reverse))]
+                                                           var))
+                                              vars))
+                               new-reachable-vars (set (for [{:keys [e v]} (get var->clauses var)
+                                                             var [e v]
+                                                             :when (logic-var? var)]
                                                          var))
-                                            vars))
-                             new-reachable-vars (set (for [{:keys [e v]} (get var->clauses var)
-                                                           var [e v]
-                                                           :when (logic-var? var)]
-                                                       var))
-                             new-vars-to-add (->> (for [{:keys [v]} (get var->clauses var)
-                                                        :when (and (logic-var? v)
-                                                                   (= 1 (count (get var->clauses v))))]
-                                                    var)
-                                                  (sort-by var->cardinality)
-                                                  (cons var))]
-                         (recur (remove (set new-vars-to-add) vars)
-                                (vec (concat join-order new-vars-to-add))
-                                (cons (set/difference new-reachable-vars (set new-vars-to-add)) reachable-var-groups)))
-                       (vec (distinct join-order))))]
+                               new-vars-to-add (->> (for [{:keys [v]} (get var->clauses var)
+                                                          :when (and (logic-var? v)
+                                                                     (= 1 (count (get var->clauses v))))]
+                                                      var)
+                                                    (sort-by var->cardinality)
+                                                    (cons var))]
+                           (recur (remove (set new-vars-to-add) vars)
+                                  (vec (concat join-order new-vars-to-add))
+                                  (cons (set/difference new-reachable-vars (set new-vars-to-add)) reachable-var-groups)))
+                         (vec (distinct join-order)))))]
     (log/debug :triple-joins-var->cardinality var->cardinality)
     (log/debug :triple-joins-join-order join-order)
     [(->> join-order
@@ -1343,7 +1422,7 @@
 
 (def ^:private ^:dynamic *broken-cycles* #{})
 
-(defn- compile-sub-query [encode-value-fn where in rule-name->rules stats]
+(defn- compile-sub-query [encode-value-fn where in rule-name->rules stats cost-based-join-order?]
   (try
     (let [where (expand-rules where rule-name->rules {})
           in-vars (set (find-binding-vars (:bindings in)))
@@ -1366,7 +1445,8 @@
                                                                        var->joins
                                                                        type->clauses
                                                                        in-vars
-                                                                       stats)
+                                                                       stats
+                                                                       cost-based-join-order?)
           [in-idx-ids var->joins] (in-joins (:bindings in) var->joins)
           [pred-clause+idx-ids var->joins] (pred-joins pred-clauses var->joins)
           known-vars (set/union e-vars v-vars in-vars)
@@ -1435,7 +1515,7 @@
         (if (and (= ::dep/circular-dependency reason)
                  (not (contains? *broken-cycles* cycle)))
           (binding [*broken-cycles* (conj *broken-cycles* cycle)]
-            (compile-sub-query encode-value-fn (break-cycle where cycle) in rule-name->rules stats))
+            (compile-sub-query encode-value-fn (break-cycle where cycle) in rule-name->rules stats cost-based-join-order?))
           (throw e))))))
 
 (defn- build-idx-id->idx [db index-snapshot {:keys [var->joins] :as compiled-query}]
@@ -1467,7 +1547,7 @@
                                                     logic-var+range-constraint)))))
     compiled-query))
 
-(defn- build-sub-query [index-snapshot {:keys [query-cache] :as db} where in in-args rule-name->rules stats]
+(defn- build-sub-query [index-snapshot {:keys [query-cache cost-based-join-order?] :as db} where in in-args rule-name->rules stats]
   ;; NOTE: this implies argument sets with different vars get compiled
   ;; differently.
   (let [encode-value-fn (partial db/encode-value index-snapshot)
@@ -1481,10 +1561,10 @@
                 attr-stats]
          :as compiled-query} (-> (cache/compute-if-absent
                                   query-cache
-                                  [where in rule-name->rules]
+                                  [where in rule-name->rules cost-based-join-order?]
                                   identity
                                   (fn [_]
-                                    (compile-sub-query encode-value-fn where in rule-name->rules stats)))
+                                    (compile-sub-query encode-value-fn where in rule-name->rules stats cost-based-join-order?)))
                                  (add-logic-var-constraints))
         idx-id->idx (build-idx-id->idx db index-snapshot compiled-query)
         unary-join-indexes (for [v vars-in-join-order]
@@ -1509,7 +1589,8 @@
     (log/debug :var->bindings (cio/pr-edn-str var->bindings))
     {:n-ary-join (when (constrain-result-fn [] 0)
                    (idx/new-n-ary-join-layered-virtual-index unary-join-indexes constrain-result-fn))
-     :var->bindings var->bindings}))
+     :var->bindings var->bindings
+     :vars-in-join-order vars-in-join-order}))
 
 (defn- open-index-snapshot ^java.io.Closeable [{:keys [index-store index-snapshot] :as db}]
   (if index-snapshot
@@ -1560,6 +1641,48 @@
                              (= :desc direction) -))
                      order-by))))))))
 
+(defn- sorted-by-join-order?
+  "Results come out ordered by the buffers of the vars in join order, so
+  we can skip sorting a single ascending order-by on the first logic var
+  in join order - as long as all of its values are of one type whose
+  buffers sort the same as the values themselves.
+
+  Probes the query's own n-ary join, which is left back at its top
+  level - the results always start with a fresh seek there."
+  [order-by aggregate? vars-in-join-order n-ary-join]
+  (let [[{:keys [find-arg direction]} & more-order-by] order-by
+        [literals [first-var]] (split-with (complement logic-var?) vars-in-join-order)]
+    (when (and (not aggregate?)
+               (nil? more-order-by)
+               (not= :desc direction)
+               first-var
+               (= find-arg first-var)
+               n-ary-join)
+      (let [!depth (volatile! 0)]
+        (try
+          (loop []
+            (when-let [v (db/seek-values n-ary-join nil)]
+              (if (< (long @!depth) (count literals))
+                (do (db/open-level n-ary-join)
+                    (vswap! !depth inc)
+                    (recur))
+                (and (c/ordered-value-buffer? v)
+                     (nil? (db/seek-values n-ary-join (c/next-value-type-buffer v)))))))
+          (finally
+            (dotimes [_ @!depth]
+              (db/close-level n-ary-join))))))))
+
+(defn- sort-results
+  "Only the first `(+ offset limit)` sorted results are ever consumed, so
+  where that's no more than one external sort part, we keep them in a
+  bounded heap instead."
+  [^Comparator comparator offset limit results]
+  (let [k (when limit
+            (+ (long (or offset 0)) (long limit)))]
+    (if (and k (<= (long k) cio/default-external-sort-part-size))
+      (cio/top-k comparator k results)
+      (cio/external-sort comparator results))))
+
 (defn- compile-find [conformed-find {:keys [var->bindings full-results?]} {:keys [projection-cache]}]
   (for [[var-type arg] conformed-find]
     (case var-type
@@ -1644,15 +1767,128 @@
 
 (defn query-plan-for [q encode-value-fn stats]
   (s/assert ::query q)
-  (let [{:keys [where in rules]} (s/conform ::query q)
+  (let [{:keys [where in rules cost-based-join-order?]} (s/conform ::query q)
         [in in-args] (add-legacy-args q [])]
-    (compile-sub-query encode-value-fn where in (rule-name->rules rules) stats)))
-
-(defn query [{:keys [index-store index-snapshot] :as db} ^ConformedQuery conformed-q in-args]
+    (compile-sub-query encode-value-fn where in (rule-name->rules rules) stats cost-based-join-order?)))
+
+;; Parallel queries split the values of the first var in join order
+;; into key ranges, each run on the query pool against its own nested
+;; snapshot of the query's index snapshot. Each partition streams its
+;; rows through a small bounded queue, and partitions are concatenated
+;; in key order, so results come out in the same order as they would on
+;; a single thread.
+;;
+;; When the first var in join order only has one value (it's bound by a
+;; literal or an argument, say) there's only one partition, so the query
+;; runs on a single pool thread.
+
+(def ^:private ^:const parallel-partition-size 256)
+(def ^:private ^:const parallel-buffer-size 1024)
+(def ^:private partition-done (Object.))
+
+(defn- first-var-partitions [n-ary-join]
+  ;; only the bounds are copied - each is copied before the index moves on
+  (let [bounds (->> (idx/idx->seq n-ary-join)
+                    (take-nth parallel-partition-size)
+                    (map mem/copy-to-unpooled-buffer))]
+    (map vector bounds (concat (rest bounds) [nil]))))
+
+(defn- run-partition
+  "Puts the rows in the key range on the queue, followed by
+  `partition-done` (or the exception). Stops as soon as the query's
+  cancelled."
+  [{:keys [index-snapshot] :as db} build-n-ary-join-fn var-bindings [from to] ^BlockingQueue queue ^AtomicBoolean cancelled?]
+  (letfn [(put! [x]
+            (loop []
+              (when-not (or (.get cancelled?)
+                            (.offer queue x 100 TimeUnit/MILLISECONDS))
+                (recur))))]
+    (try
+      (with-open [index-snapshot (db/open-nested-index-snapshot index-snapshot)]
+        (let [db (assoc db :index-snapshot index-snapshot)
+              db (assoc db :entity-resolver-fn (new-entity-resolver-fn db))
+              n-ary-join (build-n-ary-join-fn index-snapshot db)]
+          (doseq [join-keys (idx/layered-idx->seq (when n-ary-join
+                                                    (idx/new-key-range-layered-virtual-index n-ary-join from to)))
+                  :while (not (.get cancelled?))]
+            (put! (mapv (fn [var-binding]
+                          (bound-result-for-var index-snapshot var-binding join-keys))
+                        var-bindings)))))
+      (put! partition-done)
+      (catch Throwable t
+        (put! t)))))
+
+(defn- await-uninterruptibly
+  "The query may have been interrupted by its timeout, but we still have
+  to wait for its partitions before closing its snapshot."
+  [^CountDownLatch latch]
+  (when (loop [interrupted? false]
+          (if (try
+                (.await latch)
+                true
+                (catch InterruptedException _
+                  false))
+            interrupted?
+            (recur true)))
+    (.interrupt (Thread/currentThread))))
+
+(defn- parallel-results
+  "Up to the pool's parallelism of partitions run ahead of the consumer.
+  The partitions are cancelled (and waited for) when the query's
+  closed, before its index snapshot is."
+  [{:keys [^ForkJoinPool query-pool !closeables]} n-ary-join run-partition-fn]
+  (let [cancelled? (AtomicBoolean.)
+        !latches (atom [])
+        partitions (for [partition (first-var-partitions n-ary-join)]
+                     (let [queue (ArrayBlockingQueue. parallel-buffer-size)
+                           latch (CountDownLatch. 1)]
+                       (swap! !latches conj latch)
+                       (.execute query-pool ^Runnable (fn []
+                                                        (try
+                                                          (when-not (.get cancelled?)
+                                                            (run-partition-fn partition queue cancelled?))
+                                                          (finally
+                                                            (.countDown latch)))))
+                       queue))]
+    (swap! !closeables conj (reify Closeable
+                              (close [_]
+                                (.set cancelled? true)
+                                (run! await-uninterruptibly @!latches))))
+    (letfn [(partition-rows [^BlockingQueue queue]
+              (lazy-seq
+               (let [row (.take queue)]
+                 (cond
+                   (identical? partition-done row) nil
+                   (instance? Throwable row) (throw row)
+                   :else (cons row (partition-rows queue))))))
+            (step [partitions in-flight]
+              (lazy-seq
+               (when-let [[queue & partitions] (seq partitions)]
+                 ;; realising `in-flight` keeps the pool busy ahead of the consumer
+                 (seq in-flight)
+                 (concat (partition-rows queue)
+                         (step partitions (rest in-flight))))))]
+      (step partitions (drop (.getParallelism query-pool) partitions)))))
+
+;; The summaries only change when the tx ingester refreshes them, which
+;; it announces on the bus along with the new summaries - so the query
+;; engine keeps the latest ones rather than thawing them for every query.
+
+(defn- attribute-summaries [{:keys [index-store !attribute-summaries]}]
+  (if !attribute-summaries
+    (or @!attribute-summaries
+        (do
+          ;; a refresh that's come in meanwhile wins
+          (compare-and-set! !attribute-summaries nil (or (db/read-index-meta index-store :crux/attribute-summaries) {}))
+          @!attribute-summaries))
+    (db/read-index-meta index-store :crux/attribute-summaries)))
+
+(defn query [{:keys [index-store index-snapshot query-pool] :as db} ^ConformedQuery conformed-q in-args]
   (let [q (.q-normalized conformed-q)
         q-conformed (.q-conformed conformed-q)
-        {:keys [find where in rules offset limit order-by full-results?]} q-conformed
-        stats (or (db/read-index-meta index-store :crux/attribute-stats) {})
+        {:keys [find where in rules offset limit order-by full-results? cost-based-join-order? parallel?]} q-conformed
+        stats (-> (or (db/read-index-meta index-store :crux/attribute-stats) {})
+                  (stats/with-attribute-summaries (attribute-summaries db)))
         [in in-args] (add-legacy-args q-conformed in-args)]
     (when full-results?
       (defonce -full-results-deprecation-log
@@ -1664,16 +1900,20 @@
                                           (dissoc :args))))
     (validate-in in)
     (let [rule-name->rules (with-meta (rule-name->rules rules) {:rules (:rules q)})
-          db (assoc db :index-snapshot index-snapshot)
+          db (assoc db
+                    :index-snapshot index-snapshot
+                    :cost-based-join-order? (boolean cost-based-join-order?))
           entity-resolver-fn (or (:entity-resolver-fn db)
                                  (new-entity-resolver-fn db))
           db (assoc db :entity-resolver-fn entity-resolver-fn)
-          {:keys [n-ary-join] :as built-query} (build-sub-query index-snapshot db where in in-args rule-name->rules stats)
+          {:keys [n-ary-join vars-in-join-order] :as built-query} (build-sub-query index-snapshot db where in in-args rule-name->rules stats)
           compiled-find (compile-find find (assoc built-query :full-results? full-results?) db)
           var-types (set (map :var-type compiled-find))
           aggregate? (contains? var-types :aggregate)
           project? (or (contains? var-types :project) full-results?)
-          var-bindings (mapv :var-binding compiled-find)]
+          var-bindings (mapv :var-binding compiled-find)
+          sort? (and order-by
+                     (not (sorted-by-join-order? order-by aggregate? vars-in-join-order n-ary-join)))]
       (doseq [{:keys [logic-var var-binding]} compiled-find
               :when (nil? var-binding)]
         (throw (err/illegal-arg :find-unknown-var
@@ -1684,13 +1924,21 @@
                                 {::err/message  (str "Order by requires an element from :find. unreturned element: " find-arg)})))
 
       (lazy-seq
-       (cond->> (for [join-keys (idx/layered-idx->seq n-ary-join)]
-                  (mapv (fn [var-binding]
-                          (bound-result-for-var index-snapshot var-binding join-keys))
-                        var-bindings))
+       (cond->> (if (and parallel? query-pool n-ary-join)
+                  (parallel-results db
+                                    n-ary-join
+                                    (fn [partition queue cancelled?]
+                                      (run-partition db
+                                                     (fn [index-snapshot db]
+                                                       (:n-ary-join (build-sub-query index-snapshot db where in in-args rule-name->rules stats)))
+                                                     var-bindings partition queue cancelled?)))
+                  (for [join-keys (idx/layered-idx->seq n-ary-join)]
+                    (mapv (fn [var-binding]
+                            (bound-result-for-var index-snapshot var-binding join-keys))
+                          var-bindings)))
 
          aggregate? (aggregate-result compiled-find)
-         order-by (cio/external-sort (order-by-comparator find order-by))
+         sort? (sort-results (order-by-comparator find order-by) offset limit)
          offset (drop offset)
          limit (take limit)
          project? (project/->project-result db compiled-find q-conformed))))))
@@ -1773,7 +2021,8 @@
 
   (openQuery [db query args]
     (let [index-snapshot (open-index-snapshot db)
-          db (assoc db :index-snapshot index-snapshot)
+          !closeables (atom [])
+          db (assoc db :index-snapshot index-snapshot :!closeables !closeables)
           entity-resolver-fn (or entity-resolver-fn (new-entity-resolver-fn db))
           db (assoc db :entity-resolver-fn entity-resolver-fn)
 
@@ -1796,6 +2045,7 @@
                                          :message (.getMessage e)}}))
                (throw e)))
            (cio/->cursor (fn []
+                           (run! cio/try-close @!closeables)
                            (cio/try-close index-snapshot)
                            (when bus
                              (bus/send bus {:crux/event-type ::completed-query
@@ -1861,9 +2111,10 @@
      :crux.tx/tx (or (:crux.tx/tx valid-time-or-basis)
                      (select-keys valid-time-or-basis [:crux.tx/tx-time :crux.tx/tx-id]))}))
 
-(defrecord QueryEngine [^ScheduledExecutorService interrupt-executor document-store
+(defrecord QueryEngine [^ScheduledExecutorService interrupt-executor ^ForkJoinPool query-pool document-store
                         index-store bus
-                        query-cache conform-cache projection-cache]
+                        query-cache conform-cache projection-cache
+                        !attribute-summaries ^Closeable attribute-summaries-listener]
   api/DBProvider
   (db [this] (api/db this nil))
   (db [this valid-time tx-time] (api/db this {:crux.db/valid-time valid-time, :crux.tx/tx-time tx-time}))
@@ -1896,8 +2147,13 @@
 
   Closeable
   (close [_]
+    (cio/try-close attribute-summaries-listener)
     (when interrupt-executor
       (doto interrupt-executor
+        (.shutdown)
+        (.awaitTermination 60000 TimeUnit/MILLISECONDS)))
+    (when query-pool
+      (doto query-pool
         (.shutdown)
         (.awaitTermination 60000 TimeUnit/MILLISECONDS)))))
 
@@ -1919,6 +2175,18 @@
                                   :batch-size {:doc "Batch size of results"
                                                :default 100
                                                :required? true
-                                               :spec ::sys/pos-int}}}
-  [opts]
-  (map->QueryEngine (assoc opts :interrupt-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-query-interrupter")))))
+                                               :spec ::sys/pos-int}
+                                  :query-parallelism {:doc "Number of threads for `:parallel?` queries"
+                                                      :default (.availableProcessors (Runtime/getRuntime))
+                                                      :spec ::sys/pos-int}}}
+  [{:keys [query-parallelism bus] :as opts}]
+  ;; without a bus, we'd never hear about refreshes - so we don't cache
+  (let [!attribute-summaries (when bus (atom nil))]
+    (map->QueryEngine (assoc opts
+                             :interrupt-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-query-interrupter"))
+                             :query-pool (ForkJoinPool. (int query-parallelism))
+                             :!attribute-summaries !attribute-summaries
+                             :attribute-summaries-listener (when bus
+                                                             (bus/listen bus {:crux/event-types #{::tx/refreshed-attribute-summaries}}
+                                                                         (fn [{:crux/keys [attribute-summaries]}]
+                                                                           (reset! !attribute-summaries attribute-summaries))))))))
@@ -0,0 +1,218 @@
+(ns ^:no-doc crux.stats
+  "Per-attribute statistics for the query planner.
+
+  Alongside the attribute value counts in `:crux/attribute-stats`, we
+  keep HyperLogLog sketches of the distinct values and entities of each
+  attribute, and a reservoir sample of its numeric and date values.
+  These are maintained incrementally at ingest, and periodically
+  summarised into distinct-count estimates and equi-depth histograms,
+  which is all the planner reads."
+  (:require [crux.codec :as c])
+  (:import java.util.Date
+           org.agrona.DirectBuffer))
+
+;;;; HyperLogLog
+
+(def ^:private ^:const hll-precision 10)
+(def ^:private ^:const hll-register-count (bit-shift-left 1 hll-precision))
+
+(defn- mix64
+  "Murmur3's 64-bit finaliser, so that the register index and rank bits
+  are independent."
+  ^long [^long h]
+  (let [h (bit-xor h (unsigned-bit-shift-right h 33))
+        h (unchecked-multiply h -49064778989728563)
+        h (bit-xor h (unsigned-bit-shift-right h 33))
+        h (unchecked-multiply h -4265267296055464877)]
+    (bit-xor h (unsigned-bit-shift-right h 33))))
+
+(defn- buffer-hash64
+  "64-bit FNV-1a over the buffer's bytes."
+  ^long [^DirectBuffer b]
+  (let [n (.capacity b)]
+    (loop [idx 0
+           h -3750763034362895579]
+      (if (< idx n)
+        (recur (inc idx) (unchecked-multiply (bit-xor h (long (.getByte b idx))) 1099511628211))
+        (mix64 h)))))
+
+(defn- value-hash64
+  "Hashes the value's index encoding, so that values are distinct
+  exactly when the indexes consider them distinct, whatever their
+  `hashCode`."
+  ^long [v]
+  (buffer-hash64 (c/->value-buffer v)))
+
+(defn- new-hll ^bytes []
+  (byte-array hll-register-count))
+
+(defn- copy-hll ^bytes [^bytes hll]
+  (aclone hll))
+
+(defn- hll-add! [^bytes hll ^long h]
+  (let [idx (int (unsigned-bit-shift-right h (- 64 hll-precision)))
+        rank (inc (min (Long/numberOfLeadingZeros (bit-shift-left h hll-precision))
+                       (- 64 hll-precision)))]
+    (when (> rank (aget hll idx))
+      (aset hll idx (byte rank)))
+    hll))
+
+(defn- hll-estimate ^double [^bytes hll]
+  (let [m (double hll-register-count)
+        alpha (/ 0.7213 (+ 1.0 (/ 1.079 m)))]
+    (loop [idx 0
+           sum 0.0
+           zeros 0]
+      (if (< idx hll-register-count)
+        (let [rank (aget hll idx)]
+          (recur (inc idx)
+                 (+ sum (Math/scalb 1.0 (int (- rank))))
+                 (if (zero? rank) (inc zeros) zeros)))
+        (let [estimate (/ (* alpha m m) sum)]
+          (if (and (<= estimate (* 2.5 m)) (pos? zeros))
+            (* m (Math/log (/ m zeros)))
+            estimate))))))
+
+;;;; Equi-depth histograms
+
+(def ^:private ^:const sample-size 256)
+(def ^:private ^:const histogram-buckets 16)
+
+(defn- ->histogram-value [v]
+  (cond
+    (number? v) (double v)
+    (instance? Date v) (double (.getTime ^Date v))))
+
+(defn- sample-value
+  "Reservoir sampling (Vitter's algorithm R): every value seen so far is
+  equally likely to be in the sample."
+  [{:keys [sample seen] :as reservoir} v]
+  (let [seen (inc seen)]
+    (assoc reservoir
+           :seen seen
+           :sample (cond
+                     (< (count sample) sample-size) (conj sample v)
+                     :else (let [idx (long (rand-int (min seen Integer/MAX_VALUE)))]
+                             (cond-> sample
+                               (< idx sample-size) (assoc idx v)))))))
+
+(defn- sample->histogram
+  "Bucket bounds such that each bucket holds roughly the same number of
+  sampled values."
+  [sample]
+  (when (seq sample)
+    (let [sorted (vec (sort sample))
+          n (dec (count sorted))]
+      (vec (for [bucket (range (inc histogram-buckets))]
+             (nth sorted (quot (* bucket n) histogram-buckets)))))))
+
+(defn- histogram-cdf
+  "Estimated fraction of values less than x, interpolating linearly
+  within the bucket."
+  ^double [histogram ^double x]
+  (cond
+    (<= x (double (first histogram))) 0.0
+    (>= x (double (peek histogram))) 1.0
+    :else (let [idx (long (loop [idx 0]
+                            (if (< x (double (nth histogram (inc idx))))
+                              idx
+                              (recur (inc idx)))))
+                lo (double (nth histogram idx))
+                hi (double (nth histogram (inc idx)))]
+            (/ (+ idx (/ (- x lo) (- hi lo)))
+               (dec (count histogram))))))
+
+;;;; Ingest
+
+;; Each attribute's sketch is stored under its own key, so that a tx
+;; only reads and writes the sketches of the attributes in its docs.
+;; Summaries are recomputed from the sketches separately, and only for
+;; the attributes whose sketches have changed since.
+
+(defn attribute-sketch-key [a]
+  [:crux/attribute-sketch a])
+
+(defn update-sketches
+  "Adds the given documents to the per-attribute sketches, returning the
+  updated sketches of the attributes in the documents. `sketches` looks
+  up an attribute's current sketch (a map will do) - these aren't
+  mutated."
+  [sketches docs]
+  (->> (for [doc docs
+             :let [eid (:crux.db/id doc)]
+             [a v] doc]
+         [a eid v])
+       (reduce (fn [acc [a eid v]]
+                 (let [{:keys [values entities] :as sketch} (or (get acc a)
+                                                                 (some-> (when sketches (sketches a))
+                                                                         (update :values copy-hll)
+                                                                         (update :entities copy-hll))
+                                                                 {:values (new-hll)
+                                                                  :entities (new-hll)
+                                                                  :reservoir {:seen 0, :sample []}})
+                       vs (c/vectorize-value v)]
+                   (doseq [v vs]
+                     (hll-add! values (value-hash64 v)))
+                   (hll-add! entities (buffer-hash64 (c/->id-buffer eid)))
+                   (assoc acc a (update sketch :reservoir
+                                        (fn [reservoir]
+                                          (->> (keep ->histogram-value vs)
+                                               (reduce sample-value reservoir)))))))
+               {})))
+
+(defn ->attribute-summary
+  "The small, planner-facing view of an attribute's sketch."
+  [{:keys [values entities reservoir]}]
+  (cond-> {:distinct-values (hll-estimate values)
+           :distinct-entities (hll-estimate entities)}
+    (seq (:sample reservoir)) (assoc :histogram (sample->histogram (:sample reservoir)))))
+
+(defn ->attribute-summaries [sketches]
+  (->> (for [[a sketch] sketches]
+         [a (->attribute-summary sketch)])
+       (into {})))
+
+;;;; Planner
+
+(defn with-attribute-summaries
+  "Attaches the summaries to the attribute stats, the attribute value
+  counts remaining the map itself."
+  [stats summaries]
+  (cond-> stats
+    summaries (vary-meta assoc ::attribute-summaries summaries)))
+
+(defn- attribute-summary [stats a]
+  (get-in (meta stats) [::attribute-summaries a]))
+
+(defn- estimate-or-count ^double [stats a k]
+  (let [value-count (double (get stats a 0))]
+    (if-let [estimate (get (attribute-summary stats a) k)]
+      (min value-count (max 1.0 (double estimate)))
+      value-count)))
+
+(defn distinct-values
+  "Estimated number of distinct values of the attribute - the value
+  count when there's no sketch for it."
+  ^double [stats a]
+  (estimate-or-count stats a :distinct-values))
+
+(defn distinct-entities
+  "Estimated number of distinct entities with the attribute - the value
+  count when there's no sketch for it."
+  ^double [stats a]
+  (estimate-or-count stats a :distinct-entities))
+
+(defn range-selectivity
+  "Estimated fraction of the attribute's values satisfying `(op v val)`,
+  or nil when we can't tell."
+  [stats a op val]
+  (let [{:keys [histogram]} (attribute-summary stats a)
+        x (->histogram-value val)]
+    (when (and histogram x)
+      (let [x (double x)
+            floor (/ 1.0 (max 1.0 (distinct-values stats a)))]
+        (max floor
+             (case op
+               (< <=) (histogram-cdf histogram x)
+               (> >=) (- 1.0 (histogram-cdf histogram x))
+               = floor))))))
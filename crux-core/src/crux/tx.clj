@@ -7,18 +7,22 @@
             [crux.cache.nop :as nop-cache]
             [crux.codec :as c]
             [crux.db :as db]
+            [crux.document-store]
             [crux.error :as err]
             [crux.fork :as fork]
             [crux.io :as cio]
             [crux.kv.index-store :as kvi]
             [crux.mem-kv :as mem-kv]
+            [crux.stats :as stats]
             [crux.system :as sys]
             [crux.tx.conform :as txc]
             [crux.tx.event :as txe])
   (:import crux.codec.EntityTx
+           crux.document_store.CachedDocumentStore
            java.io.Closeable
            java.time.Duration
-           [java.util.concurrent Executors ExecutorService TimeUnit]
+           [java.util.concurrent ArrayBlockingQueue Executors ExecutorService RejectedExecutionException
+            RejectedExecutionHandler ScheduledExecutorService ThreadPoolExecutor ThreadPoolExecutor$DiscardOldestPolicy TimeUnit]
            java.util.Date))
 
 (set! *unchecked-math* :warn-on-boxed)
@@ -44,6 +48,7 @@
 
 (s/def ::ingester-error #(instance? Exception %))
 (defmethod bus/event-spec ::ingester-error [_] (s/keys :req [::ingester-error]))
+(defmethod bus/event-spec ::refreshed-attribute-summaries [_] (s/keys :req [:crux/attribute-summaries]))
 
 (defn- etx->vt [^EntityTx etx]
   (.vt etx))
@@ -240,18 +245,79 @@
 (defmethod index-tx-event :default [[op & _] tx tx-ingester]
   (throw (err/illegal-arg :unknown-tx-op {:op op})))
 
-(defn- update-stats [{:keys [index-store ^ExecutorService stats-executor] :as tx-ingester} docs-stats]
-  (let [stats-fn ^Runnable #(->> (apply merge-with + (db/read-index-meta index-store :crux/attribute-stats) docs-stats)
-                                 (db/store-index-meta index-store :crux/attribute-stats))]
-    (if stats-executor
-      (.submit stats-executor stats-fn)
-      (stats-fn))))
-
 (defn- doc-predicate-stats [doc]
   (->> (for [[k v] doc]
          [k (count (c/vectorize-value v))])
        (into {})))
 
+;; Only the sketches of the attributes in a tx's docs are read and
+;; written, and the attributes are marked stale. The (comparatively
+;; expensive) summaries the planner reads are recomputed for the stale
+;; attributes once the stats executor has caught up, or at most every
+;; `summaries-refresh-interval-ms` while it's busy. Refreshed summaries
+;; are sent on the bus, so that query engines can cache them in between.
+
+(def ^:private ^:const summaries-refresh-interval-ms 1000)
+(def ^:private ^:const stats-queue-size 1024)
+
+(defn- refresh-attribute-summaries [{:keys [index-store bus !stale-summaries]}]
+  (let [[{:keys [attrs]}] (swap-vals! !stale-summaries assoc
+                                      :attrs #{}
+                                      :refreshed-at-ms (System/currentTimeMillis))]
+    (when (seq attrs)
+      (let [summaries (->> (for [a attrs
+                                 :let [sketch (db/read-index-meta index-store (stats/attribute-sketch-key a))]
+                                 :when sketch]
+                             [a (stats/->attribute-summary sketch)])
+                           (into (or (db/read-index-meta index-store :crux/attribute-summaries) {})))]
+        (db/store-index-meta index-store :crux/attribute-summaries summaries)
+        (when bus
+          (bus/send bus {:crux/event-type ::refreshed-attribute-summaries
+                         :crux/attribute-summaries summaries}))))))
+
+(defn- summaries-due? [^ThreadPoolExecutor stats-executor !stale-summaries]
+  (or (nil? stats-executor)
+      (.isEmpty (.getQueue stats-executor))
+      (>= (- (System/currentTimeMillis) (long (:refreshed-at-ms @!stale-summaries)))
+          summaries-refresh-interval-ms)))
+
+(defn- update-stats [{:keys [index-store ^ThreadPoolExecutor stats-executor !stale-summaries] :as tx-ingester} docs]
+  (let [stats-fn ^Runnable #(do
+                              (->> (apply merge-with + (db/read-index-meta index-store :crux/attribute-stats) (map doc-predicate-stats docs))
+                                   (db/store-index-meta index-store :crux/attribute-stats))
+                              (let [sketches (stats/update-sketches (fn [a]
+                                                                      (db/read-index-meta index-store (stats/attribute-sketch-key a)))
+                                                                    docs)]
+                                (doseq [[a sketch] sketches]
+                                  (db/store-index-meta index-store (stats/attribute-sketch-key a) sketch))
+                                (swap! !stale-summaries update :attrs into (keys sketches)))
+                              (when (summaries-due? stats-executor !stale-summaries)
+                                (refresh-attribute-summaries tx-ingester)))]
+    (if stats-executor
+      (.submit stats-executor stats-fn)
+      (stats-fn))))
+
+(defn- ->stats-executor
+  "Single-threaded, with a bounded queue - submitting blocks the
+  ingester when stats fall too far behind."
+  ^java.util.concurrent.ThreadPoolExecutor []
+  (ThreadPoolExecutor. 1 1 0 TimeUnit/MILLISECONDS
+                       (ArrayBlockingQueue. stats-queue-size)
+                       (cio/thread-factory "crux.tx.update-stats-thread")
+                       (reify RejectedExecutionHandler
+                         (rejectedExecution [_ r executor]
+                           ;; we wait for space in the queue, but give up if the executor's shut down
+                           ;; meanwhile - and take the task back out if it beat us to the shutdown,
+                           ;; because the worker may already have exited
+                           (let [queue (.getQueue executor)]
+                             (loop []
+                               (when (.isShutdown executor)
+                                 (throw (RejectedExecutionException. "Stats executor is shut down")))
+                               (when-not (.offer queue r 100 TimeUnit/MILLISECONDS)
+                                 (recur)))
+                             (when (and (.isShutdown executor) (.remove queue r))
+                               (throw (RejectedExecutionException. "Stats executor is shut down"))))))))
+
 (defn- index-docs [{:keys [bus index-store] :as tx-ingester} docs]
   (when-let [missing-ids (seq (remove :crux.db/id (vals docs)))]
     (throw (err/illegal-arg :missing-eid {::err/message "Missing required attribute :crux.db/id"
@@ -262,8 +328,7 @@
       (bus/send bus {:crux/event-type ::indexing-docs, :doc-ids doc-ids})
 
       (let [{:keys [bytes-indexed indexed-docs]} (db/index-docs index-store docs)]
-        (update-stats tx-ingester (->> (vals indexed-docs)
-                                       (map doc-predicate-stats)))
+        (update-stats tx-ingester (vals indexed-docs))
 
         (bus/send bus {:crux/event-type ::indexed-docs,
                        :doc-ids doc-ids
@@ -278,72 +343,213 @@
                                          (get arg-doc-id)))))
     evt))
 
+;; Group commit: consecutive, non-conflicting txs are committed to the
+;; index store in a single KV write batch. Their `::indexed-tx` events
+;; are held back until the batch is flushed, so that anyone awaiting
+;; them can also see their writes.
+
+(def ^:private empty-group-commit-state
+  {:eids #{}, :events [], :started-at nil})
+
+(defn- flush-group-commit [{:keys [!state index-store bus]}]
+  (locking !state
+    (kvi/flush-group-commit index-store)
+    (let [{:keys [events]} @!state]
+      (reset! !state empty-group-commit-state)
+      (doseq [event events]
+        (bus/send bus event)))))
+
+(defn- flush-group-commit-if-due [{:keys [!state ^Duration max-duration] :as group-commit}]
+  (when-let [started-at (:started-at @!state)]
+    (when (>= (- (System/currentTimeMillis) (long started-at)) (.toMillis max-duration))
+      (flush-group-commit group-commit))))
+
+(defn- group-commit-conflict?
+  "Only puts and deletes of entities not written earlier in the batch
+  can be indexed without seeing the batch's (as yet unflushed) writes."
+  [{:keys [!state]} tx-events]
+  (let [{:keys [eids]} @!state]
+    (boolean (and (seq eids)
+                  (some (fn [[op eid]]
+                          (or (not (contains? #{:crux.tx/put :crux.tx/delete} op))
+                              (contains? eids (c/new-id eid))))
+                        tx-events)))))
+
+(defn- add-to-group-commit [{:keys [!state ^long max-txs] :as group-commit} eids event]
+  (let [{:keys [events]} (locking !state
+                           (swap! !state (fn [{:keys [started-at] :as state}]
+                                           (-> state
+                                               (update :eids into (map c/new-id) eids)
+                                               (update :events conj event)
+                                               (assoc :started-at (or started-at (System/currentTimeMillis)))))))]
+    (when (>= (count events) max-txs)
+      (flush-group-commit group-commit))))
+
+(defmacro ^:private with-group-commit-lock
+  "Commits and aborts hold the batch's lock throughout, so that the timer
+  can't flush half a tx's writes, or flush before its event is added."
+  [group-commit & body]
+  `(if-let [{!state# :!state} ~group-commit]
+     (locking !state#
+       ~@body)
+     (do ~@body)))
+
+(defn- send-indexed-tx [{:keys [bus group-commit]} eids event]
+  (if group-commit
+    (add-to-group-commit group-commit eids event)
+    (bus/send bus event)))
+
+(defn- direct-indexable?
+  "Txs consisting solely of puts and deletes, each of a different entity,
+  can't observe their own writes - these can be indexed straight into
+  the index store, without forking it."
+  [tx-events]
+  (and (every? (comp #{:crux.tx/put :crux.tx/delete} first) tx-events)
+       (let [eids (map (comp c/new-id second) tx-events)]
+         (= (count eids) (count (set eids))))))
+
+(defn- index-direct-tx-events [{:keys [tx index-store document-store]} tx-events]
+  (let [docs (fetch-docs document-store (txc/tx-events->doc-hashes tx-events))]
+    (with-open [index-snapshot (db/open-index-snapshot index-store)]
+      {:tx-events tx-events
+       :indexed-docs docs
+       :etxs (->> tx-events
+                  (into [] (mapcat (fn [tx-event]
+                                     (:etxs (index-tx-event tx-event tx {:index-snapshot index-snapshot}))))))})))
+
+(defn- ->fork [{:keys [index-store document-store query-engine]} {:keys [fork-at] :as tx}]
+  (let [transient-kv-store (mem-kv/->skip-list-kv-store {:pooled-chunks? (nil? fork-at)})
+        forked-index-store (fork/->forked-index-store index-store (kvi/->kv-index-store {:kv-store transient-kv-store
+                                                                                         :cav-cache (nop-cache/->nop-cache {})
+                                                                                         :canonical-buffer-cache (nop-cache/->nop-cache {})
+                                                                                         :decoded-value-cache (nop-cache/->nop-cache {})})
+                                                      (::db/valid-time fork-at)
+                                                      (get fork-at ::tx-id (::tx-id tx)))
+        forked-document-store (fork/->forked-document-store document-store)]
+    {:transient-kv-store transient-kv-store
+     :forked-index-store forked-index-store
+     :forked-document-store forked-document-store
+     :query-engine (assoc query-engine
+                          :index-store forked-index-store
+                          :document-store forked-document-store)}))
+
+(defn- tx-results [{:keys [fork !direct]}]
+  (or (some-> !direct deref)
+      (let [{:keys [forked-index-store forked-document-store]} @fork]
+        {:new-docs (fork/new-docs forked-document-store)
+         :indexed-docs (fork/indexed-docs forked-index-store)
+         :evict-eids (fork/newly-evicted-eids forked-index-store)
+         :etxs (fork/new-etxs forked-index-store)})))
+
+(defn- close-fork
+  "Gives the fork's memory back once the tx is committed or aborted -
+  only speculative forks (`fork-at`) outlive their tx."
+  [{:keys [fork]}]
+  (when (realized? fork)
+    (cio/try-close (:transient-kv-store @fork))))
+
+(defn- index-forked-tx-events [{:keys [tx !state fork index-store]} tx-events]
+  (with-open [index-snapshot (db/open-index-snapshot index-store)]
+    (let [{:keys [forked-index-store forked-document-store query-engine]} @fork
+          forked-index-store (assoc forked-index-store :persistent-index-snapshot index-snapshot)]
+      (db/index-docs forked-index-store (fetch-docs forked-document-store (txc/tx-events->doc-hashes tx-events)))
+
+      (let [forked-deps {:index-store forked-index-store
+                         :document-store forked-document-store
+                         :query-engine (assoc query-engine :index-store forked-index-store)}
+            abort? (loop [[tx-event & more-tx-events] tx-events]
+                     (when tx-event
+                       (let [{new-tx-events :tx-events, :keys [abort? evict-eids etxs docs]}
+                             (with-open [index-snapshot (db/open-index-snapshot forked-index-store)]
+                               (let [{:keys [docs pre-commit-fn] :as res} (index-tx-event (-> tx-event
+                                                                                              (with-tx-fn-args forked-deps))
+                                                                                          tx
+                                                                                          (assoc forked-deps :index-snapshot index-snapshot))]
+                                 (if (and pre-commit-fn (not (pre-commit-fn)))
+                                   {:abort? true
+                                    :docs docs}
+                                   res)))]
+                         (db/submit-docs forked-document-store docs)
+
+                         (when-not abort?
+                           (doto forked-index-store
+                             (db/index-docs docs)
+                             (db/unindex-eids evict-eids)
+                             (db/index-entity-txs tx etxs)))
+
+                         (or abort?
+                             (recur (concat new-tx-events more-tx-events))))))]
+        (when abort?
+          (reset! !state :abort-only))
+
+        (not abort?)))))
+
+(defn- forked
+  "The tx's fork, having first replayed any events that took the direct
+  path into it - the fork has to see them too, and the direct results
+  are dropped once it exists."
+  [{:keys [fork !direct] :as in-flight-tx}]
+  (when-let [{direct-tx-events :tx-events} (some-> !direct deref)]
+    (reset! !direct nil)
+    (index-forked-tx-events in-flight-tx direct-tx-events))
+  @fork)
+
 (defrecord InFlightTx [tx !state !tx-events !error
-                       forked-index-store forked-document-store
-                       query-engine index-store document-store bus
-                       stats-executor]
+                       fork !direct
+                       index-store document-store bus
+                       stats-executor !stale-summaries group-commit]
   db/DocumentStore
-  (submit-docs [_ docs]
-    (db/submit-docs forked-document-store docs))
+  (submit-docs [this docs]
+    (db/submit-docs (:forked-document-store (forked this)) docs))
 
-  (fetch-docs [_ ids]
-    (db/fetch-docs forked-document-store ids))
+  (fetch-docs [this ids]
+    (db/fetch-docs (:forked-document-store (forked this)) ids))
 
   api/DBProvider
-  (db [ctx] (api/db query-engine tx))
-  (db [ctx valid-time-or-basis] (api/db query-engine valid-time-or-basis))
-  (db [ctx valid-time tx-time] (api/db query-engine valid-time tx-time))
-  (open-db [ctx] (api/open-db query-engine tx))
-  (open-db [ctx valid-time-or-basis] (api/open-db query-engine valid-time-or-basis))
-  (open-db [ctx valid-time tx-time] (api/open-db query-engine valid-time tx-time))
+  (db [ctx] (api/db (:query-engine (forked ctx)) tx))
+  (db [ctx valid-time-or-basis] (api/db (:query-engine (forked ctx)) valid-time-or-basis))
+  (db [ctx valid-time tx-time] (api/db (:query-engine (forked ctx)) valid-time tx-time))
+  (open-db [ctx] (api/open-db (:query-engine (forked ctx)) tx))
+  (open-db [ctx valid-time-or-basis] (api/open-db (:query-engine (forked ctx)) valid-time-or-basis))
+  (open-db [ctx valid-time tx-time] (api/open-db (:query-engine (forked ctx)) valid-time tx-time))
 
   db/InFlightTx
   (index-tx-events [this tx-events]
     (when (not= @!state :open)
       (throw (IllegalStateException. "Transaction marked as " (name @!state))))
 
-    (swap! !tx-events into tx-events)
-
-    (with-open [index-snapshot (db/open-index-snapshot index-store)]
-      (try
-        (let [forked-index-store (assoc forked-index-store :persistent-index-snapshot index-snapshot)]
-          (db/index-docs forked-index-store (fetch-docs forked-document-store (txc/tx-events->doc-hashes tx-events)))
-
-          (let [forked-deps {:index-store forked-index-store
-                             :document-store forked-document-store
-                             :query-engine (assoc query-engine :index-store forked-index-store)}
-                abort? (loop [[tx-event & more-tx-events] tx-events]
-                         (when tx-event
-                           (let [{new-tx-events :tx-events, :keys [abort? evict-eids etxs docs]}
-                                 (with-open [index-snapshot (db/open-index-snapshot forked-index-store)]
-                                   (let [{:keys [docs pre-commit-fn] :as res} (index-tx-event (-> tx-event
-                                                                                                  (with-tx-fn-args forked-deps))
-                                                                                              tx
-                                                                                              (assoc forked-deps :index-snapshot index-snapshot))]
-                                     (if (and pre-commit-fn (not (pre-commit-fn)))
-                                       {:abort? true
-                                        :docs docs}
-                                       res)))]
-                             (db/submit-docs forked-document-store docs)
-
-                             (when-not abort?
-                               (doto forked-index-store
-                                 (db/index-docs docs)
-                                 (db/unindex-eids evict-eids)
-                                 (db/index-entity-txs tx etxs)))
-
-                             (or abort?
-                                 (recur (concat new-tx-events more-tx-events))))))]
-            (when abort?
-              (reset! !state :abort-only))
-
-            (not abort?)))
-
-        (catch Throwable e
-          (reset! !error e)
-          (reset! !state :abort-only)
-          (bus/send bus {:crux/event-type ::ingester-error, ::ingester-error e})
-          (throw e)))))
+    (let [direct? (and !direct
+                       (not (:fork-at tx))
+                       (not (realized? fork))
+                       (empty? @!tx-events)
+                       (direct-indexable? tx-events))]
+      (swap! !tx-events into tx-events)
+
+      (when (and group-commit
+                 (not (:fork-at tx))
+                 (group-commit-conflict? group-commit tx-events))
+        (flush-group-commit group-commit))
+
+      (if direct?
+        (try
+          (reset! !direct (index-direct-tx-events this tx-events))
+          true
+
+          (catch Throwable e
+            (reset! !error e)
+            (reset! !state :abort-only)
+            (bus/send bus {:crux/event-type ::ingester-error, ::ingester-error e})
+            (throw e)))
+
+        (try
+          (forked this)
+          (index-forked-tx-events this tx-events)
+
+          (catch Throwable e
+            (reset! !error e)
+            (reset! !state :abort-only)
+            (bus/send bus {:crux/event-type ::ingester-error, ::ingester-error e})
+            (throw e))))))
 
   (commit [this]
     (when-not (compare-and-set! !state :open :committed)
@@ -352,27 +558,34 @@
     (when (:fork-at tx)
       (throw (IllegalStateException. "Can't commit from fork.")))
 
-    (when-let [new-docs (fork/new-docs forked-document-store)]
-      (db/submit-docs document-store new-docs)
+    (try
+      (let [{:keys [new-docs indexed-docs evict-eids etxs]} (tx-results this)]
+        (when new-docs
+          (db/submit-docs document-store new-docs)
 
-      ;; ensure the docs are available before we commit the tx, see #1105
-      (fetch-docs document-store (keys new-docs)))
+          ;; ensure the docs are available before we commit the tx, see #1105
+          (fetch-docs document-store (keys new-docs)))
 
-    (index-docs this (fork/indexed-docs forked-index-store))
+        (with-group-commit-lock group-commit
+          (index-docs this indexed-docs)
 
-    (when-let [evict-eids (not-empty (fork/newly-evicted-eids forked-index-store))]
-      (bus/send bus {:crux/event-type ::unindexing-eids, :eids evict-eids})
-      (let [{:keys [tombstones]} (db/unindex-eids index-store evict-eids)]
-        (db/submit-docs document-store tombstones)))
+          (when-let [evict-eids (not-empty evict-eids)]
+            (bus/send bus {:crux/event-type ::unindexing-eids, :eids evict-eids})
+            (let [{:keys [tombstones]} (db/unindex-eids index-store evict-eids)]
+              (db/submit-docs document-store tombstones)))
 
-    (bus/send bus {:crux/event-type ::indexing-tx-pre-commit, ::submitted-tx tx})
+          (bus/send bus {:crux/event-type ::indexing-tx-pre-commit, ::submitted-tx tx})
 
-    (db/index-entity-txs index-store tx (fork/new-etxs forked-index-store))
+          (db/index-entity-txs index-store tx etxs)
 
-    (bus/send bus {:crux/event-type ::indexed-tx,
-                   ::submitted-tx tx,
-                   :committed? true
-                   ::txe/tx-events @!tx-events}))
+          (send-indexed-tx this
+                           (concat (map #(.eid ^EntityTx %) etxs) evict-eids)
+                           {:crux/event-type ::indexed-tx,
+                            ::submitted-tx tx,
+                            :committed? true
+                            ::txe/tx-events @!tx-events})))
+      (finally
+        (close-fork this))))
 
   (abort [this]
     (swap! !state (fn [state]
@@ -385,74 +598,141 @@
 
     (log/debug "Transaction aborted:" (pr-str tx))
 
-    (db/submit-docs document-store
-                    (->> (fork/new-docs forked-document-store)
-                         (into {} (filter (comp :crux.db.fn/failed? val)))))
-
-    (index-docs this (fork/indexed-docs forked-index-store))
-
-    (db/mark-tx-as-failed index-store tx)
-
-    (bus/send bus {:crux/event-type ::indexed-tx,
-                   ::submitted-tx tx,
-                   :committed? false
-                   ::txe/tx-events @!tx-events})))
-
-(defrecord TxIngester [!error index-store document-store bus query-engine ^ExecutorService stats-executor]
+    (try
+      (let [{:keys [new-docs indexed-docs]} (tx-results this)]
+        (db/submit-docs document-store
+                        (->> new-docs
+                             (into {} (filter (comp :crux.db.fn/failed? val)))))
+
+        (with-group-commit-lock group-commit
+          (index-docs this indexed-docs)
+
+          (db/mark-tx-as-failed index-store tx)
+
+          (send-indexed-tx this
+                           (keep :crux.db/id (vals indexed-docs))
+                           {:crux/event-type ::indexed-tx,
+                            ::submitted-tx tx,
+                            :committed? false
+                            ::txe/tx-events @!tx-events})))
+      (finally
+        (close-fork this)))))
+
+(defrecord TxIngester [!error index-store document-store bus query-engine ^ExecutorService stats-executor !stale-summaries
+                       group-commit ^ScheduledExecutorService group-commit-executor
+                       fork-all-txs?]
   db/TxIngester
-  (begin-tx [_ {:keys [fork-at], ::keys [tx-time] :as tx}]
+  (begin-tx [this {:keys [fork-at], ::keys [tx-time] :as tx}]
     (when-not fork-at
       (log/debug "Indexing tx-id:" (::tx-id tx))
 
       (bus/send bus {:crux/event-type ::indexing-tx, ::submitted-tx tx}))
 
-    (let [forked-index-store (fork/->forked-index-store index-store (kvi/->kv-index-store {:kv-store (mem-kv/->kv-store)
-                                                                                           :cav-cache (nop-cache/->nop-cache {})
-                                                                                           :canonical-buffer-cache (nop-cache/->nop-cache {})})
-                                                        (::db/valid-time fork-at)
-                                                        (get fork-at ::tx-id (::tx-id tx)))
-          forked-document-store (fork/->forked-document-store document-store)]
-      (->InFlightTx tx (atom :open) (atom []) !error
-                    forked-index-store
-                    forked-document-store
-                    (assoc query-engine
-                           :index-store forked-index-store
-                           :document-store forked-document-store)
-                    index-store document-store bus
-                    stats-executor)))
+    ;; the fork is only created if the tx can observe its own writes, see `direct-indexable?`
+    (->InFlightTx tx (atom :open) (atom []) !error
+                  (delay (->fork this tx)) (when-not fork-all-txs? (atom nil))
+                  index-store document-store bus
+                  stats-executor !stale-summaries group-commit))
   (ingester-error [_] @!error)
 
   Closeable
-  (close [_]
+  (close [this]
+    (when group-commit-executor
+      (doto group-commit-executor
+        (.shutdown)
+        (.awaitTermination 60000 TimeUnit/MILLISECONDS)))
+
     (when stats-executor
       (doto stats-executor
         (.shutdown)
-        (.awaitTermination 60000 TimeUnit/MILLISECONDS)))))
+        (.awaitTermination 60000 TimeUnit/MILLISECONDS)))
+
+    (refresh-attribute-summaries this)
+
+    ;; stats go through the group-commit index store too, so we flush last
+    (when group-commit
+      (flush-group-commit group-commit))))
 
 (defn ->tx-ingester {::sys/deps {:index-store :crux/index-store
                                  :document-store :crux/document-store
                                  :bus :crux/bus
                                  :query-engine :crux/query-engine}
                      ::sys/args {:stats-executor? {:default true
-                                                   :spec ::sys/boolean}}}
-  [{:keys [stats-executor?] :as deps}]
-  (map->TxIngester (assoc deps
-                          :!error (atom nil)
-                          :stats-executor (when stats-executor?
-                                            (Executors/newSingleThreadExecutor (cio/thread-factory "crux.tx.update-stats-thread"))))))
-
-(defn- index-tx-log [{:keys [tx-ingester index-store ^Duration poll-sleep-duration]} open-next-txs]
+                                                   :spec ::sys/boolean}
+                                 :fork-all-txs? {:default false
+                                                 :spec ::sys/boolean
+                                                 :doc "Index every transaction through a fork of the index store, even those that can't observe their own writes"}
+                                 :group-commit-max-txs {:default 1
+                                                        :spec ::sys/pos-int
+                                                        :doc "Maximum number of consecutive, non-conflicting transactions to commit to the index store in a single write batch. 1 disables group commit."}
+                                 :group-commit-max-duration {:default (Duration/ofMillis 10)
+                                                             :spec ::sys/duration
+                                                             :doc "Maximum time a transaction is held in a group commit batch before it's flushed"}}}
+  [{:keys [stats-executor? ^long group-commit-max-txs ^Duration group-commit-max-duration bus index-store] :as deps}]
+  (let [group-commit? (> group-commit-max-txs 1)
+        index-store (cond-> index-store
+                      group-commit? (kvi/->group-commit-index-store))
+        group-commit (when group-commit?
+                       {:!state (atom empty-group-commit-state)
+                        :index-store index-store
+                        :bus bus
+                        :max-txs group-commit-max-txs
+                        :max-duration group-commit-max-duration})]
+    (map->TxIngester (assoc deps
+                            :!error (atom nil)
+                            :index-store index-store
+                            :stats-executor (when stats-executor?
+                                              (->stats-executor))
+                            :!stale-summaries (atom {:attrs #{}, :refreshed-at-ms 0})
+                            :group-commit group-commit
+                            :group-commit-executor (when group-commit
+                                                     (let [interval-ms (max 1 (.toMillis group-commit-max-duration))]
+                                                       (doto (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux.tx.group-commit-thread"))
+                                                         (.scheduleWithFixedDelay #(try
+                                                                                     (flush-group-commit-if-due group-commit)
+                                                                                     (catch Exception e
+                                                                                       (log/warn e "Error flushing group commit")))
+                                                                                  interval-ms interval-ms TimeUnit/MILLISECONDS))))))))
+
+(defn- prefetch-docs-ahead
+  "Lazily returns `txs`, having asked the document store for the docs of
+  up to `prefetch-tx-count` txs ahead of the one currently being
+  indexed. This only warms the document store's cache - the indexer
+  still fetches (and waits for) the docs itself, in tx order. The
+  executor only queues `prefetch-tx-count` prefetches, dropping the
+  oldest - the indexer's most likely caught up with those already."
+  [txs {:keys [document-store ^ExecutorService prefetch-executor ^long prefetch-tx-count]}]
+  (letfn [(unchunk [xs]
+            (lazy-seq
+             (when-let [[x & more] (seq xs)]
+               (cons x (unchunk more)))))
+          (prefetch! [{::txe/keys [tx-events] :as tx}]
+            (.submit prefetch-executor
+                     ^Runnable #(try
+                                  (db/fetch-docs document-store (txc/tx-events->doc-hashes tx-events))
+                                  (catch Exception e
+                                    (log/debug e "Error prefetching docs for tx-id:" (::tx-id tx)))))
+            tx)]
+    (let [prefetched-txs (map prefetch! (unchunk txs))]
+      (map (fn [tx _] tx)
+           prefetched-txs
+           (concat (drop prefetch-tx-count prefetched-txs) (repeat nil))))))
+
+(defn- index-tx-log [{:keys [tx-ingester index-store ^Duration poll-sleep-duration prefetch-executor] :as opts} open-next-txs]
   (log/info "Started tx-consumer")
   (try
-    (while true
-      (let [consumed-txs? (when-let [^crux.api.ICursor
+    ;; with group commit, the latest indexed tx may not be visible in the index store yet
+    (loop [latest-indexed-tx-id (::tx-id (db/latest-completed-tx index-store))]
+      (let [!latest-indexed-tx-id (volatile! latest-indexed-tx-id)
+            consumed-txs? (when-let [^crux.api.ICursor
                                      txs (try
-                                           (open-next-txs (::tx-id (db/latest-completed-tx index-store)))
+                                           (open-next-txs latest-indexed-tx-id)
                                            (catch InterruptedException e (throw e))
                                            (catch Exception e
                                              (log/warn e "Error polling for txs, will retry")))]
                             (try
-                              (let [txs (iterator-seq txs)
+                              (let [txs (cond-> (iterator-seq txs)
+                                          prefetch-executor (prefetch-docs-ahead opts))
                                     consumed-txs? (not (empty? txs))]
                                 (doseq [{:keys [::txe/tx-events] :as tx} txs
                                         :let [tx (select-keys tx [::tx-time ::tx-id])]]
@@ -465,6 +745,8 @@
                                       (db/commit in-flight-tx)
                                       (db/abort in-flight-tx)))
 
+                                  (vreset! !latest-indexed-tx-id (::tx-id tx))
+
                                   (when (Thread/interrupted)
                                     (throw (InterruptedException.))))
 
@@ -474,22 +756,47 @@
         (when (Thread/interrupted)
           (throw (InterruptedException.)))
         (when-not consumed-txs?
-          (Thread/sleep (.toMillis poll-sleep-duration)))))
+          (Thread/sleep (.toMillis poll-sleep-duration)))
+        (recur @!latest-indexed-tx-id)))
 
     (catch InterruptedException e))
 
   (log/info "Shut down tx-consumer"))
 
 (defn ->polling-tx-consumer {::sys/deps {:index-store :crux/index-store
+                                         :document-store :crux/document-store
                                          :tx-ingester :crux/tx-ingester}
                              ::sys/args {:poll-sleep-duration {:spec ::sys/duration
                                                                :default (Duration/ofMillis 100)
-                                                               :doc "How long to sleep between polling for new transactions"}}}
-  [opts open-next-txs]
-  (let [executor-thread (doto (Thread. #(index-tx-log opts open-next-txs))
+                                                               :doc "How long to sleep between polling for new transactions"}
+                                         :prefetch-tx-count {:spec ::sys/nat-int
+                                                             :default 0
+                                                             :doc "Number of transactions ahead of the indexer to prefetch documents for, 0 to disable"}
+                                         :prefetch-threads {:spec ::sys/pos-int
+                                                            :default 4
+                                                            :doc "Number of threads used to prefetch documents"}}}
+  [{:keys [document-store ^long prefetch-tx-count ^long prefetch-threads] :as opts} open-next-txs]
+  (let [prefetch? (cond
+                    (zero? prefetch-tx-count) false
+                    ;; without a cache, the prefetched docs would just be thrown away
+                    (instance? CachedDocumentStore document-store) true
+                    :else (do (log/warn "Not prefetching docs: the document store doesn't cache them")
+                              false))
+        ^ExecutorService prefetch-executor (when prefetch?
+                                             (ThreadPoolExecutor. (int prefetch-threads) (int prefetch-threads)
+                                                                  0 TimeUnit/MILLISECONDS
+                                                                  (ArrayBlockingQueue. (int prefetch-tx-count))
+                                                                  (cio/thread-factory "crux-tx-doc-prefetch")
+                                                                  (ThreadPoolExecutor$DiscardOldestPolicy.)))
+        opts (assoc opts :prefetch-executor prefetch-executor)
+        executor-thread (doto (Thread. #(index-tx-log opts open-next-txs))
                           (.setName "crux-polling-tx-consumer")
                           (.start))]
     (reify Closeable
       (close [_]
         (.interrupt executor-thread)
-        (.join executor-thread)))))
+        (.join executor-thread)
+        (when prefetch-executor
+          (doto prefetch-executor
+            (.shutdownNow)
+            (.awaitTermination 5000 TimeUnit/MILLISECONDS)))))))
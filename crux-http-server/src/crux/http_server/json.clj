@@ -8,9 +8,11 @@
             [muuntaja.format.core :as mfc])
   (:import clojure.lang.IPersistentList
            com.fasterxml.jackson.core.JsonGenerator
+           com.fasterxml.jackson.databind.ObjectMapper
            [crux.codec EDNId Id]
            crux.http_server.entity_ref.EntityRef
-           java.io.OutputStream))
+           java.io.OutputStream
+           java.util.Iterator))
 
 (defn- emit-list [coll ^JsonGenerator gen]
   (if (contains? #{'fn* 'fn} (first coll))
@@ -45,19 +47,47 @@
   (cond->> m
     (map? m) (into {} (map (juxt (comp csk/->camelCaseKeyword key) val)))))
 
+(defn- ->json-generator ^com.fasterxml.jackson.core.JsonGenerator [^OutputStream output-stream]
+  ;; the mapper is the factory's codec, so `.writeObject` uses our encoders
+  (.createGenerator (.getFactory ^ObjectMapper crux-object-mapper) output-stream))
+
 (defn ->json-encoder [{:keys [json-encode-fn], :or {json-encode-fn identity}}]
   (reify
     mfc/EncodeToBytes
     (encode-to-bytes [_ data _]
       (j/write-value-as-bytes (json-encode-fn data) crux-object-mapper))
     mfc/EncodeToOutputStream
-    (encode-to-output-stream [_ {:keys [^Cursor results] :as data} _]
+    (encode-to-output-stream [_ {:keys [^Iterator results] :as data} _]
+      (fn [^OutputStream output-stream]
+        (try
+          (if results
+            ;; straight from the cursor, so that we don't hold on to the results we've written
+            (with-open [gen (->json-generator output-stream)]
+              (.writeStartArray gen)
+              (while (.hasNext results)
+                (.writeObject gen (json-encode-fn (.next results))))
+              (.writeEndArray gen))
+            (j/write-value output-stream (json-encode-fn data) crux-object-mapper))
+          (finally
+            (cio/try-close results)))))))
+
+(defn ->ndjson-encoder
+  "Newline-delimited JSON - one result per line, so that clients can
+  consume the results as they arrive."
+  [{:keys [json-encode-fn], :or {json-encode-fn identity}}]
+  (reify
+    mfc/EncodeToOutputStream
+    (encode-to-output-stream [_ {:keys [^Iterator results] :as data} _]
       (fn [^OutputStream output-stream]
         (try
-          (j/write-value output-stream
-                         (if results
-                           (map json-encode-fn (iterator-seq results))
-                           (json-encode-fn data))
-                         crux-object-mapper)
+          (with-open [gen (doto (->json-generator output-stream)
+                            (.setRootValueSeparator nil))]
+            (if results
+              (while (.hasNext results)
+                (.writeObject gen (json-encode-fn (.next results)))
+                (.writeRaw gen "\n"))
+              (doto gen
+                (.writeObject (json-encode-fn data))
+                (.writeRaw "\n"))))
           (finally
             (cio/try-close results)))))))
@@ -18,7 +18,7 @@
   (:import [java.io Closeable OutputStream]
            [java.time Instant ZoneId]
            java.time.format.DateTimeFormatter
-           java.util.Date))
+           [java.util Date Iterator]))
 
 (s/def ::query
   (st/spec
@@ -68,12 +68,14 @@
 
 (defn- ->*sv-encoder [{:keys [sep]}]
   (reify mfc/EncodeToOutputStream
-    (encode-to-output-stream [_ {:keys [results query] :as res} charset]
+    (encode-to-output-stream [_ {:keys [^Iterator results query] :as res} charset]
       (fn [^OutputStream output-stream]
         (with-open [w (io/writer output-stream)]
           (try
             (if results
-              (csv/write-csv w (cons (:find query) (iterator-seq results)) :separator sep)
+              (do (csv/write-csv w [(:find query)] :separator sep)
+                  (while (.hasNext results)
+                    (csv/write-csv w [(.next results)] :separator sep)))
               (.write w (pr-str res)))
             (finally
               (cio/try-close results))))))))
@@ -115,8 +117,12 @@
                 (m/install {:name "application/transit+json"
                             :encoder [util/->tj-encoder]
                             :decoder [(partial mft/decoder :json)]})
+                (m/install {:name "application/transit+json-seq"
+                            :encoder [util/->tj-seq-encoder]})
                 (m/install {:name "application/json"
-                            :encoder [http-json/->json-encoder]}))))
+                            :encoder [http-json/->json-encoder]})
+                (m/install {:name "application/x-ndjson"
+                            :encoder [http-json/->ndjson-encoder]}))))
 
 (defmulti transform-req
   (fn [query req]
@@ -19,7 +19,7 @@
            [crux.codec EDNId Id]
            crux.http_server.entity_ref.EntityRef
            [java.io ByteArrayOutputStream OutputStream]
-           (java.util Date Map)))
+           (java.util Date Iterator Map)))
 
 (s/def ::eid (and string? c/valid-id?))
 
@@ -60,13 +60,21 @@
         (.getBytes (pr-str data) "UTF-8")))
 
     mfc/EncodeToOutputStream
-    (encode-to-output-stream [_ {:keys [^Cursor results] :as data} _]
+    (encode-to-output-stream [_ {:keys [^Iterator results] :as data} _]
       (fn [^OutputStream output-stream]
         (binding [*print-length* nil, *print-level* nil]
           (with-open [w (io/writer output-stream)]
             (try
               (if results
-                (print-method (or (iterator-seq results) '()) w)
+                ;; printed as a list, a result at a time straight from the
+                ;; cursor, so that we don't hold on to the results we've written
+                (do (.write w "(")
+                    (when (.hasNext results)
+                      (print-method (.next results) w)
+                      (while (.hasNext results)
+                        (.write w " ")
+                        (print-method (.next results) w)))
+                    (.write w ")"))
                 (.write w ^String (pr-str data)))
               (finally
                 (cio/try-close results)))))))))
@@ -97,6 +105,33 @@
               (finally
                 (cio/try-close results)))))))))
 
+(def ^:private ^:const tj-seq-buffer-size (* 64 1024))
+
+(defn ->tj-seq-encoder
+  "Each result as its own top-level transit value, so that clients can
+  read the results as they arrive."
+  [_]
+  (let [options {:handlers tj-write-handlers}]
+    (reify
+      mfc/EncodeToOutputStream
+      (encode-to-output-stream [_ {:keys [^Iterator results] :as data} _]
+        (fn [^OutputStream output-stream]
+          ;; transit flushes after every value - we buffer them up
+          ;; rather than sending a chunk per result
+          (let [baos (ByteArrayOutputStream.)
+                writer (transit/writer baos :json options)]
+            (try
+              (if results
+                (while (.hasNext results)
+                  (transit/write writer (.next results))
+                  (when (> (.size baos) tj-seq-buffer-size)
+                    (.writeTo baos output-stream)
+                    (.reset baos)))
+                (transit/write writer data))
+              (.writeTo baos output-stream)
+              (finally
+                (cio/try-close results)))))))))
+
 (defn ->default-muuntaja
   ([] (->default-muuntaja {}))
 
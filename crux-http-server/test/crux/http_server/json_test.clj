@@ -1,5 +1,6 @@
 (ns crux.http-server.json-test
   (:require [clj-http.client :as http]
+            [clojure.string :as str]
             [clojure.test :as t]
             [crux.fixtures :as fix :refer [*api*]]
             [crux.fixtures.http-server :as fh :refer [*api-url*]]
@@ -94,6 +95,16 @@
                                            :where [[e :firstName "Sally"]]
                                            :full-results? true})}})))
 
+    (t/testing "ndjson"
+      (t/is (= #{["sal"] ["jed"] ["colin"]}
+               (->> (http/get (str *api-url* "/_crux/query")
+                              {:accept "application/x-ndjson"
+                               :query-params {"queryEdn" (pr-str '{:find [e]
+                                                                   :where [[e :crux.db/id]]})}})
+                    :body
+                    (str/split-lines)
+                    (into #{} (map json/read-value))))))
+
     (t/testing "eql project"
       (let [{:strs [txId] :as tx} (submit-tx [["put" {"crux.db/id" "link", "linking" "jed"}]])]
         (t/is (= tx
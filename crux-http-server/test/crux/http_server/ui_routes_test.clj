@@ -10,17 +10,36 @@
             [crux.fixtures.http-server :as fh :refer [*api-url*]]
             [crux.http-server.entity-ref :as entity-ref]
             [jsonista.core :as json])
-  (:import java.io.InputStream))
+  (:import [java.io EOFException InputStream]))
 
 (t/use-fixtures :each
   fh/with-http-server
   fix/with-node)
 
+(def ^:private transit-read-handlers
+  {"crux.http/entity-ref" entity-ref/ref-read-handler
+   "crux/oid" (transit/read-handler c/id-edn-reader)
+   "crux/base64" (transit/read-handler c/base64-reader)})
+
+(defn- read-transit-seq
+  "Reads top-level transit values until the end of the stream."
+  [^InputStream in]
+  (let [rdr (transit/reader in :json {:handlers transit-read-handlers})]
+    (loop [vs []]
+      (let [v (try
+                (transit/read rdr)
+                (catch RuntimeException e
+                  (if (instance? EOFException (.getCause e))
+                    ::eof
+                    (throw e))))]
+        (if (= ::eof v)
+          vs
+          (recur (conj vs v)))))))
+
 (defn- parse-body [{:keys [^InputStream body]} content-type]
   (case content-type
-    "application/transit+json" (transit/read (transit/reader body :json {:handlers {"crux.http/entity-ref" entity-ref/ref-read-handler
-                                                                                    "crux/oid" (transit/read-handler c/id-edn-reader)
-                                                                                    "crux/base64" (transit/read-handler c/base64-reader)}}))
+    "application/transit+json" (transit/read (transit/reader body :json {:handlers transit-read-handlers}))
+    "application/transit+json-seq" (read-transit-seq body)
     "application/json" (json/read-value body)
     "application/edn" (edn/read-string {:readers {'crux.http/entity-ref entity-ref/->EntityRef
                                                   'crux/id str}}
@@ -76,6 +95,14 @@
                                  (parse-body accept-type))))]
         (t/is (= #{[:ivan] [:peter]} (get-query "application/edn")))
         (t/is (= #{[:ivan] [:peter]} (get-query "application/transit+json")))
+
+        (t/testing "as a sequence of transit values, one per result"
+          (let [results (-> (get-result-from-path (format "/_crux/query?query-edn=%s" '{:find [e] :where [[e :crux.db/id _]]})
+                                                  "application/transit+json-seq")
+                            (parse-body "application/transit+json-seq"))]
+            (t/is (= 2 (count results)))
+            (t/is (= #{[:ivan] [:peter]} (set results)))))
+
         (t/is (= #{[":ivan"] [":peter"] ["e"]} (get-query "text/csv")))
         (t/is (= #{[":ivan"] [":peter"] ["e"]} (get-query "text/tsv")))))
 
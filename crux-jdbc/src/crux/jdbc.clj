@@ -1,6 +1,7 @@
 (ns crux.jdbc
   (:require [clojure.java.data :as jd]
             [clojure.string :as str]
+            [clojure.tools.logging :as log]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.document-store :as ds]
@@ -9,13 +10,17 @@
             [crux.tx :as tx]
             [next.jdbc :as jdbc]
             [next.jdbc.connection :as jdbcc]
+            [next.jdbc.prepared :as jdbcp]
             [next.jdbc.result-set :as jdbcr]
             [taoensso.nippy :as nippy]
             [clojure.spec.alpha :as s])
   (:import (com.zaxxer.hikari HikariDataSource HikariConfig)
-           java.util.Date
+           (java.util ArrayList Date UUID)
+           (java.util.concurrent ArrayBlockingQueue BlockingQueue ExecutorService Executors Future LinkedBlockingQueue TimeUnit)
+           java.util.concurrent.atomic.AtomicBoolean
            java.io.Closeable
-           java.sql.Timestamp))
+           java.sql.Timestamp
+           java.time.Duration))
 
 (defprotocol Dialect
   (setup-schema! [_ pool])
@@ -77,34 +82,66 @@
     (jdbc/execute-one! pool ["INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES (?,?,?,0)" event-key b topic]
                        {:return-keys true :builder-fn jdbcr/as-unqualified-lower-maps})))
 
-(defn- doc-exists? [pool k]
-  (not-empty (jdbc/execute-one! pool ["SELECT EVENT_OFFSET from tx_events WHERE EVENT_KEY = ? AND COMPACTED = 0" k])))
+(def ^:private ^:const doc-batch-size 100)
 
-(defn- update-doc! [pool k doc]
-  (jdbc/execute! pool ["UPDATE tx_events SET V = ? WHERE TOPIC = 'docs' AND EVENT_KEY = ?" (nippy/freeze doc) k]))
+(defn- in-params [ks]
+  (->> (repeat (count ks) "?") (str/join ", ")))
 
-(defn- evict-doc! [pool k tombstone]
-  (jdbc/execute! pool ["UPDATE tx_events SET V = ?, COMPACTED = 1 WHERE TOPIC = 'docs' AND EVENT_KEY = ?" (nippy/freeze tombstone) k]))
+(defn- existing-doc-keys [tx ks]
+  (->> (for [k-batch (partition-all doc-batch-size ks)
+             row (jdbc/execute! tx (into [(format "SELECT EVENT_KEY FROM tx_events WHERE TOPIC = 'docs' AND EVENT_KEY IN (%s) AND COMPACTED = 0"
+                                                  (in-params k-batch))]
+                                         k-batch)
+                                {:builder-fn jdbcr/as-unqualified-lower-maps})]
+         (:event_key row))
+       (into #{})))
 
+(defn- execute-batch! [tx sql param-groups]
+  (when (seq param-groups)
+    (with-open [stmt (jdbc/prepare tx [sql])]
+      (jdbcp/execute-batch! stmt param-groups {:batch-size doc-batch-size}))))
+
+(defn- insert-docs! [tx ks+docs]
+  (execute-batch! tx "INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES (?,?,'docs',0)"
+                  (for [[k doc] ks+docs]
+                    [k (nippy/freeze doc)])))
+
+(defn- update-docs! [tx ks+docs]
+  (execute-batch! tx "UPDATE tx_events SET V = ? WHERE TOPIC = 'docs' AND EVENT_KEY = ?"
+                  (for [[k doc] ks+docs]
+                    [(nippy/freeze doc) k])))
+
+(defn- evict-docs! [tx ks+tombstones]
+  (execute-batch! tx "UPDATE tx_events SET V = ?, COMPACTED = 1 WHERE TOPIC = 'docs' AND EVENT_KEY = ?"
+                  (for [[k tombstone] ks+tombstones]
+                    [(nippy/freeze tombstone) k])))
+
+;; NOTE: tx_events has no unique key on EVENT_KEY - evicted docs keep
+;; several rows per key - so we can't use the dialects' upserts. We
+;; look up which docs already exist with one IN probe per batch, then
+;; batch the INSERTs and UPDATEs.
 (defrecord JdbcDocumentStore [pool dialect]
   db/DocumentStore
   (submit-docs [this id-and-docs]
-    (jdbc/with-transaction [tx pool]
-      (doseq [[id doc] id-and-docs
-              :let [id (str id)]]
-        (if (c/evicted-doc? doc)
-          (do
-            (insert-event! tx id doc "docs")
-            (evict-doc! tx id doc))
-          (if-not (doc-exists? tx id)
-            (insert-event! tx id doc "docs")
-            (update-doc! tx id doc))))))
+    (let [k->doc (->> (for [[id doc] id-and-docs]
+                        [(str id) doc])
+                      (into {}))
+          {evictions true, docs false} (group-by (comp boolean c/evicted-doc? val) k->doc)]
+      (jdbc/with-transaction [tx pool]
+        (when (seq evictions)
+          (insert-docs! tx evictions)
+          (evict-docs! tx evictions))
+        (when (seq docs)
+          (let [existing-ks (existing-doc-keys tx (map key docs))
+                {updates true, inserts false} (group-by (comp boolean existing-ks key) docs)]
+            (insert-docs! tx inserts)
+            (update-docs! tx updates))))))
 
   (fetch-docs [this ids]
     (cio/with-nippy-thaw-all
-      (->> (for [id-batch (partition-all 100 ids)
+      (->> (for [id-batch (partition-all doc-batch-size ids)
                  row (jdbc/execute! pool (into [(format "SELECT EVENT_KEY, V FROM tx_events WHERE TOPIC = 'docs' AND EVENT_KEY IN (%s) AND COMPACTED = 0"
-                                                        (->> (repeat (count id-batch) "?") (str/join ", ")))]
+                                                        (in-params id-batch))]
                                                (map (comp str c/new-id) id-batch))
                                     {:builder-fn jdbcr/as-unqualified-lower-maps})]
              row)
@@ -119,25 +156,153 @@
           :document-cache document-cache
           :document-store (->JdbcDocumentStore pool dialect))))
 
-(defrecord JdbcTxLog [pool dialect ^Closeable tx-consumer]
+;; Group commit: concurrent `submit-tx` calls are queued, and a single
+;; writer thread inserts everything queued within a short window in one
+;; JDBC transaction. Each batch's rows share a unique EVENT_KEY, so we
+;; can read back all of their offsets and tx-times with one SELECT,
+;; rather than relying on each driver's take on generated keys.
+;;
+;; TX_TIME is left to the column default, which most databases (Postgres
+;; in particular) evaluate once per transaction or statement - so the txs
+;; of a batch usually share a tx-time. That's deliberate: they commit
+;; atomically, tx-times stay non-decreasing in tx-id order, and a db as
+;; of that tx-time sees the whole batch. Stamping distinct times from the
+;; writer's clock instead would break that ordering against other
+;; submitting nodes.
+
+(def ^:private ^:const tx-batch-size 100)
+
+(defn- insert-txs! [pool dialect tx-events-batch]
+  (let [batch-key (str (UUID/randomUUID))]
+    (jdbc/with-transaction [tx pool]
+      (if (= :oracle (db-type dialect))
+        ;; no multi-row VALUES on Oracle
+        (execute-batch! tx "INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES (?,?,'txs',0)"
+                        (for [tx-events tx-events-batch]
+                          [batch-key (nippy/freeze tx-events)]))
+
+        (doseq [tx-events-batch (partition-all tx-batch-size tx-events-batch)]
+          (jdbc/execute! tx (into [(str "INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES "
+                                        (->> (repeat (count tx-events-batch) "(?,?,'txs',0)") (str/join ", ")))]
+                                  (mapcat (fn [tx-events]
+                                            [batch-key (nippy/freeze tx-events)]))
+                                  tx-events-batch))))
+
+      (->> (jdbc/execute! tx ["SELECT EVENT_OFFSET, TX_TIME FROM tx_events WHERE COMPACTED = 0 AND EVENT_KEY = ? ORDER BY EVENT_OFFSET" batch-key]
+                          {:builder-fn jdbcr/as-unqualified-lower-maps})
+           (mapv (fn [row]
+                   {::tx/tx-id (long (:event_offset row))
+                    ::tx/tx-time (-> (:tx_time row) (->date dialect))}))))))
+
+(defn- take-group-commit-batch [^BlockingQueue queue ^long max-txs ^Duration max-duration]
+  (let [batch (doto (ArrayList.) (.add (.take queue)))
+        deadline (+ (System/nanoTime) (.toNanos max-duration))]
+    (loop []
+      (.drainTo queue batch (- max-txs (.size batch)))
+      (let [remaining (- deadline (System/nanoTime))]
+        (when (and (< (.size batch) max-txs) (pos? remaining))
+          (when-let [submit (.poll queue remaining TimeUnit/NANOSECONDS)]
+            (.add batch submit)
+            (recur)))))
+    (vec batch)))
+
+(defn- group-commit-loop [{:keys [pool dialect]} {:keys [queue max-txs max-duration]}]
+  (try
+    (while true
+      (let [batch (take-group-commit-batch queue max-txs max-duration)]
+        (try
+          (doseq [[{:keys [!tx]} tx] (map vector batch (insert-txs! pool dialect (map :tx-events batch)))]
+            (deliver !tx tx))
+          (catch Exception e
+            (log/warn e "Error submitting group commit batch")
+            (doseq [{:keys [!tx]} batch]
+              (deliver !tx e))))))
+    (catch InterruptedException _)))
+
+(defn- submit-group-commit [{:keys [^BlockingQueue queue ^AtomicBoolean closed?]} tx-events]
+  (let [!tx (promise)
+        submit {:tx-events tx-events, :!tx !tx}]
+    (when (.get closed?)
+      (throw (IllegalStateException. "Tx log closed")))
+    (.put queue submit)
+    ;; if we lost a race with close, its drain may have missed us
+    (when (and (.get closed?) (.remove queue submit))
+      (throw (IllegalStateException. "Tx log closed")))
+    !tx))
+
+(defn- close-group-commit [{:keys [^BlockingQueue queue ^ExecutorService executor ^AtomicBoolean closed?]}]
+  (.set closed? true)
+  (doto executor
+    (.shutdownNow)
+    (.awaitTermination 60000 TimeUnit/MILLISECONDS))
+  (let [pending (ArrayList.)]
+    (.drainTo queue pending)
+    (doseq [{:keys [!tx]} pending]
+      (deliver !tx (IllegalStateException. "Tx log closed")))))
+
+;; The tx log is read a page of `fetch-size` txs at a time, keyed on the
+;; last offset seen, so that no driver buffers the whole remaining log
+;; when a node replays from the start. A producer thread runs the
+;; queries and thaws the txs into a queue holding at most a page, which
+;; the consumer reads from.
+
+(defn- fetch-tx-page [pool dialect fetch-size after-tx-id]
+  ;; Oracle's BLOBs are only readable while the connection's open, so we
+  ;; thaw the page here and hand it back before blocking on the queue
+  (with-open [conn (jdbc/get-connection pool)]
+    (->> (jdbc/execute! conn ["SELECT EVENT_OFFSET, TX_TIME, V FROM tx_events WHERE TOPIC = 'txs' AND EVENT_OFFSET > ? ORDER BY EVENT_OFFSET"
+                              after-tx-id]
+                        {:fetch-size fetch-size
+                         :max-rows fetch-size
+                         :builder-fn jdbcr/as-unqualified-lower-maps})
+         (mapv (fn [row]
+                 {:crux.tx/tx-id (long (:event_offset row))
+                  :crux.tx/tx-time (-> (:tx_time row) (->date dialect))
+                  :crux.tx.event/tx-events (-> (:v row) (<-blob dialect))})))))
+
+(defn- produce-txs [{:keys [pool dialect ^long fetch-size]} after-tx-id ^BlockingQueue queue]
+  (try
+    (loop [after-tx-id (or after-tx-id 0)]
+      (let [txs (fetch-tx-page pool dialect fetch-size after-tx-id)]
+        (doseq [tx txs]
+          (.put queue tx))
+        (if (< (count txs) fetch-size)
+          (.put queue ::end-of-log)
+          (recur (:crux.tx/tx-id (peek txs))))))
+    (catch InterruptedException _)
+    (catch Throwable t
+      ;; anything else has to reach the consumer, or it'll wait on the queue forever
+      (.put queue t))))
+
+(defn- queue->seq [^BlockingQueue queue]
+  (lazy-seq
+   (let [tx (.take queue)]
+     (cond
+       (= ::end-of-log tx) nil
+       (instance? Throwable tx) (throw tx)
+       :else (cons tx (queue->seq queue))))))
+
+(defrecord JdbcTxLog [pool dialect ^Closeable tx-consumer group-commit
+                      fetch-size ^ExecutorService tx-log-executor]
   db/TxLog
   (submit-tx [this tx-events]
-    (let [tx (-> (insert-event! pool nil tx-events "txs")
-                 (tx-result->tx-data pool dialect))]
-      (delay tx)))
+    (if group-commit
+      (let [!tx (submit-group-commit group-commit tx-events)]
+        (delay
+          (let [tx @!tx]
+            (if (instance? Throwable tx)
+              (throw tx)
+              tx))))
+
+      (let [tx (-> (insert-event! pool nil tx-events "txs")
+                   (tx-result->tx-data pool dialect))]
+        (delay tx))))
 
   (open-tx-log [this after-tx-id]
-    (let [conn (jdbc/get-connection pool)
-          stmt (jdbc/prepare conn
-                             ["SELECT EVENT_OFFSET, TX_TIME, V, TOPIC FROM tx_events WHERE TOPIC = 'txs' and EVENT_OFFSET > ? ORDER BY EVENT_OFFSET"
-                              (or after-tx-id 0)])
-          rs (.executeQuery stmt)]
-      (cio/->cursor #(run! cio/try-close [rs stmt conn])
-                    (->> (resultset-seq rs)
-                         (map (fn [y]
-                                {:crux.tx/tx-id (long (:event_offset y))
-                                 :crux.tx/tx-time (-> (:tx_time y) (->date dialect))
-                                 :crux.tx.event/tx-events (-> (:v y) (<-blob dialect))}))))))
+    (let [queue (ArrayBlockingQueue. (int fetch-size))
+          producer (.submit tx-log-executor ^Runnable #(produce-txs this after-tx-id queue))]
+      (cio/->cursor #(.cancel ^Future producer true)
+                    (queue->seq queue))))
 
   (latest-submitted-tx [this]
     (when-let [max-offset (-> (jdbc/execute-one! pool ["SELECT max(EVENT_OFFSET) AS max_offset FROM tx_events WHERE topic = 'txs'"]
@@ -147,11 +312,37 @@
 
   Closeable
   (close [_]
-    (cio/try-close tx-consumer)))
+    (cio/try-close tx-consumer)
+    (when group-commit
+      (close-group-commit group-commit))
+    (doto tx-log-executor
+      (.shutdownNow)
+      (.awaitTermination 5000 TimeUnit/MILLISECONDS))))
 
-(defn ->ingest-only-tx-log {::sys/deps {:connection-pool `->connection-pool}}
-  [{{:keys [pool dialect]} :connection-pool}]
-  (map->JdbcTxLog {:pool pool, :dialect dialect}))
+(defn ->ingest-only-tx-log {::sys/deps {:connection-pool `->connection-pool}
+                            ::sys/args {:fetch-size {:default 1000
+                                                     :spec ::sys/pos-int
+                                                     :doc "Number of transactions read from the database at a time when consuming the tx log"}
+                                        :group-commit-max-txs {:default 1
+                                                               :spec ::sys/pos-int
+                                                               :doc "Maximum number of concurrently submitted transactions to insert in a single batch. 1 disables group commit."}
+                                        :group-commit-max-duration {:default (Duration/ofMillis 2)
+                                                                    :spec ::sys/duration
+                                                                    :doc "Maximum time the first transaction in a group commit batch waits for others to join it"}}}
+  [{{:keys [pool dialect]} :connection-pool, :keys [fetch-size ^long group-commit-max-txs group-commit-max-duration]}]
+  (let [tx-log (map->JdbcTxLog {:pool pool, :dialect dialect
+                                :fetch-size fetch-size
+                                :tx-log-executor (Executors/newCachedThreadPool (cio/thread-factory "crux.jdbc.tx-log-thread"))})]
+    (if (> group-commit-max-txs 1)
+      (let [group-commit {:queue (LinkedBlockingQueue.)
+                          :closed? (AtomicBoolean.)
+                          :max-txs group-commit-max-txs
+                          :max-duration group-commit-max-duration
+                          :executor (Executors/newSingleThreadExecutor (cio/thread-factory "crux.jdbc.group-commit-thread"))}]
+        (.submit ^ExecutorService (:executor group-commit)
+                 ^Runnable #(group-commit-loop tx-log group-commit))
+        (assoc tx-log :group-commit group-commit))
+      tx-log)))
 
 (defn ->tx-log {::sys/deps (merge (::sys/deps (meta #'tx/->polling-tx-consumer))
                                   (::sys/deps (meta #'->ingest-only-tx-log)))
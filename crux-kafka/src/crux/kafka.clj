@@ -13,13 +13,13 @@
            java.io.Closeable
            java.nio.file.Path
            java.time.Duration
-           [java.util Collection Date Map UUID]
-           java.util.concurrent.ExecutionException
+           [java.util ArrayList Collection Date Map UUID]
+           [java.util.concurrent ArrayBlockingQueue BlockingQueue Callable ExecutionException ExecutorService Executors Future TimeUnit]
            [org.apache.kafka.clients.admin AdminClient NewTopic TopicDescription]
            [org.apache.kafka.clients.consumer ConsumerRebalanceListener ConsumerRecord KafkaConsumer]
            [org.apache.kafka.clients.producer KafkaProducer ProducerRecord RecordMetadata]
            [org.apache.kafka.common.errors InterruptException TopicExistsException]
-           org.apache.kafka.common.TopicPartition))
+           [org.apache.kafka.common Metric MetricName TopicPartition]))
 
 (defn ->kafka-config {::sys/args {:bootstrap-servers {:spec ::sys/string
                                                       :doc "URL for connecting to Kafka, eg \"kafka-cluster-kafka-brokers.crux.svc.cluster.local:9092\""
@@ -133,9 +133,86 @@
    :crux.tx/tx-id (.offset record)
    :crux.tx/tx-time (Date. (.timestamp record))})
 
+;; The tx consumer: a background thread polls the tx topic and thaws its
+;; records into a bounded buffer, blocking when the buffer's full, so
+;; that the indexer only ever waits on the buffer - not on Kafka or on
+;; deserialisation.
+
+(defn- records-lag
+  "The consumer's own records-lag metric for the partition, as of its
+  last fetch - saves a broker round-trip for the end offset every poll."
+  [^KafkaConsumer consumer ^TopicPartition tp]
+  (let [partition (str (.partition tp))]
+    (some (fn [[^MetricName metric-name ^Metric metric]]
+            (when (and (= "records-lag" (.name metric-name))
+                       (= partition (get (.tags metric-name) "partition")))
+              (let [lag (.metricValue metric)]
+                (when (and (number? lag) (not (Double/isNaN (double lag))))
+                  (long lag)))))
+          (.metrics consumer))))
+
+(defn- fill-tx-buffer [^KafkaConsumer consumer ^TopicPartition tp
+                       {:keys [^BlockingQueue buffer !consumer-lag ^Duration poll-wait-duration]}
+                       !next-tx-id]
+  (while true
+    (let [records (cio/with-nippy-thaw-all
+                    (.poll consumer poll-wait-duration))]
+      (doseq [^ConsumerRecord record records]
+        (.put buffer (tx-record->tx-log-entry record))
+        (vreset! !next-tx-id (inc (.offset record))))
+      (when-let [lag (records-lag consumer tp)]
+        (reset! !consumer-lag lag)))))
+
+(defn- poll-txs [{:keys [kafka-config tx-topic ^Duration poll-wait-duration] :as tx-buffer} next-tx-id]
+  (let [tp (TopicPartition. tx-topic 0)
+        !next-tx-id (volatile! next-tx-id)]
+    (try
+      (while true
+        (try
+          (with-open [consumer (doto (->consumer {:kafka-config kafka-config})
+                                 (.assign #{tp})
+                                 (seek-consumer {tp @!next-tx-id}))]
+            (fill-tx-buffer consumer tp tx-buffer !next-tx-id))
+          (catch InterruptException e
+            (Thread/interrupted)
+            (throw (InterruptedException.)))
+          (catch InterruptedException e
+            (throw e))
+          (catch Exception e
+            (log/warn e "Error polling for txs, will retry")
+            (Thread/sleep (.toMillis poll-wait-duration)))))
+      (catch InterruptedException e))))
+
+(defn- stop-tx-poller [{:keys [!poller]}]
+  (when-let [^Thread thread (:thread @!poller)]
+    (.interrupt thread)
+    (.join thread)))
+
+(defn- open-buffered-txs
+  "Returns the txs currently buffered after `after-tx-id`, waiting up to
+  the poll duration for the first. (Re)starts the poller if it isn't
+  already reading from where we're asking for."
+  [{:keys [^BlockingQueue buffer !poller ^Duration poll-wait-duration] :as tx-buffer} after-tx-id]
+  (let [next-tx-id (or (some-> after-tx-id inc) 0)]
+    (when-not (= next-tx-id (:next-tx-id @!poller))
+      (stop-tx-poller tx-buffer)
+      (.clear buffer)
+      (reset! !poller {:next-tx-id next-tx-id
+                       :thread (doto (Thread. #(poll-txs tx-buffer next-tx-id))
+                                 (.setName "crux-kafka-tx-poller")
+                                 (.start))}))
+
+    (let [txs (when-let [tx (.poll buffer (.toMillis poll-wait-duration) TimeUnit/MILLISECONDS)]
+                (let [txs (doto (ArrayList.) (.add tx))]
+                  (.drainTo buffer txs)
+                  (vec txs)))]
+      (when-let [last-tx (peek txs)]
+        (swap! !poller assoc :next-tx-id (inc (long (:crux.tx/tx-id last-tx)))))
+      (cio/->cursor (fn []) txs))))
+
 (defrecord KafkaTxLog [^KafkaProducer producer, ^KafkaConsumer latest-submitted-tx-consumer,
                        tx-topic, kafka-config,
-                       ^Closeable consumer]
+                       ^Closeable consumer, tx-buffer]
   db/TxLog
   (submit-tx [this tx-events]
     (try
@@ -163,12 +240,15 @@
 
   status/Status
   (status-map [_]
-    {:crux.zk/zk-active?
-     (try
-       (boolean (.listTopics latest-submitted-tx-consumer))
-       (catch Exception e
-         (log/debug e "Could not list Kafka topics:")
-         false))})
+    (merge {:crux.zk/zk-active?
+            (try
+              (boolean (.listTopics latest-submitted-tx-consumer))
+              (catch Exception e
+                (log/debug e "Could not list Kafka topics:")
+                false))}
+           (when-let [{:keys [^BlockingQueue buffer !consumer-lag]} tx-buffer]
+             {:crux.kafka/tx-consumer-lag @!consumer-lag
+              :crux.kafka/buffered-txs (.size buffer)})))
 
   Closeable
   (close [_]
@@ -201,28 +281,27 @@
                                   {:poll-wait-duration {:spec ::sys/duration
                                                         :required? true
                                                         :doc "How long to wait when polling Kafka"
-                                                        :default (Duration/ofSeconds 1)}})}
-  [{:keys [kafka-config tx-topic-opts poll-wait-duration] :as opts}]
+                                                        :default (Duration/ofSeconds 1)}
+                                   :tx-buffer-size {:spec ::sys/pos-int
+                                                    :default 1000
+                                                    :doc "Maximum number of polled and deserialised transactions buffered ahead of the indexer"}})}
+  [{:keys [kafka-config tx-topic-opts poll-wait-duration ^long tx-buffer-size] :as opts}]
   (let [tx-log (->ingest-only-tx-log opts)
-        tx-topic (:topic-name tx-topic-opts)
-        tp (TopicPartition. tx-topic 0)
-        consumer (doto (->consumer {:kafka-config kafka-config})
-                   (.assign #{tp}))
+        tx-buffer {:kafka-config kafka-config
+                   :tx-topic (:topic-name tx-topic-opts)
+                   :poll-wait-duration poll-wait-duration
+                   :buffer (ArrayBlockingQueue. tx-buffer-size)
+                   :!consumer-lag (atom nil)
+                   :!poller (atom nil)}
         polling-consumer (tx/->polling-tx-consumer opts
                                                    (fn [after-tx-id]
-                                                     (let [expected-position (or (some-> after-tx-id inc) 0)]
-                                                       (when-not (= (.position consumer tp) expected-position)
-                                                         (seek-consumer consumer {tp expected-position})))
-
-                                                     (cio/->cursor (fn [])
-                                                                   (->> (consumer-seqs consumer poll-wait-duration)
-                                                                        (mapcat identity)
-                                                                        (map tx-record->tx-log-entry)))))]
+                                                     (open-buffered-txs tx-buffer after-tx-id)))]
     (-> tx-log
-        (assoc :consumer (reify Closeable
+        (assoc :tx-buffer tx-buffer
+               :consumer (reify Closeable
                            (close [_]
                              (cio/try-close polling-consumer)
-                             (cio/try-close consumer)))))))
+                             (stop-tx-poller tx-buffer)))))))
 
 ;;;; DocumentStore
 
@@ -270,9 +349,27 @@
 (defn doc-record->id+doc [^ConsumerRecord doc-record]
   [(c/new-id (.key doc-record)) (.value doc-record)])
 
-(defn- index-doc-log [{:keys [local-document-store index-store !error doc-topic-opts kafka-config group-id poll-wait-duration]}]
+(defn- submit-partition-docs
+  "Writes each partition's records to the local document store in
+  parallel, in order within each partition, returning once they've all
+  been written. Records for the same doc are always in the same
+  partition, so the order across partitions doesn't matter."
+  [local-document-store ^ExecutorService submit-executor doc-records]
+  (let [partition-submits (for [[_ partition-records] (group-by #(.partition ^ConsumerRecord %) doc-records)]
+                            #(db/submit-docs local-document-store (->> partition-records (into {} (map doc-record->id+doc)))))]
+    (if (and submit-executor (next partition-submits))
+      (doseq [^Future f (.invokeAll submit-executor ^Collection (map #(reify Callable (call [_] (%))) partition-submits))]
+        (try
+          (.get f)
+          (catch ExecutionException e
+            (throw (.getCause e)))))
+      (run! #(%) partition-submits))))
+
+(defn- index-doc-log [{:keys [local-document-store index-store !error doc-topic-opts kafka-config group-id poll-wait-duration ^long submit-threads]}]
   (let [doc-topic (:topic-name doc-topic-opts)
-        tp-offsets (read-doc-offsets index-store)]
+        tp-offsets (read-doc-offsets index-store)
+        submit-executor (when (> submit-threads 1)
+                          (Executors/newFixedThreadPool submit-threads (cio/thread-factory "crux-doc-consumer-submit")))]
     (try
       (with-open [consumer (doto (->consumer {:kafka-config (assoc kafka-config
                                                                    "group.id" (or group-id (str (UUID/randomUUID))))})
@@ -280,7 +377,7 @@
         (loop [tp-offsets tp-offsets]
           (let [tp-offsets (->> (consumer-seqs consumer poll-wait-duration)
                                 (reduce (fn [tp-offsets doc-records]
-                                          (db/submit-docs local-document-store (->> doc-records (into {} (map doc-record->id+doc))))
+                                          (submit-partition-docs local-document-store submit-executor doc-records)
                                           (doto (update-doc-offsets tp-offsets doc-records)
                                             (->> (store-doc-offsets index-store))))
                                         tp-offsets))]
@@ -292,7 +389,12 @@
       (catch InterruptedException e)
       (catch Exception e
         (reset! !error e)
-        (log/error e "Error while consuming documents")))))
+        (log/error e "Error while consuming documents"))
+      (finally
+        (when submit-executor
+          (doto submit-executor
+            (.shutdownNow)
+            (.awaitTermination 5000 TimeUnit/MILLISECONDS)))))))
 
 (defn- ensure-doc-topic-exists [{:keys [kafka-config doc-topic-opts]}]
   (with-open [admin-client (->admin-client {:kafka-config kafka-config})]
@@ -313,7 +415,10 @@
                                     :poll-wait-duration {:spec ::sys/duration
                                                          :required? true
                                                          :doc "How long to wait when polling Kafka"
-                                                         :default (Duration/ofSeconds 1)}} }
+                                                         :default (Duration/ofSeconds 1)}
+                                    :submit-threads {:spec ::sys/pos-int
+                                                     :default 4
+                                                     :doc "Number of threads writing doc topic partitions to the local document store in parallel"}} }
   [{:keys [index-store local-document-store kafka-config doc-topic-opts] :as opts}]
   (ensure-doc-topic-exists opts)
 
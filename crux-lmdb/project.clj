@@ -12,6 +12,7 @@
                  [org.lwjgl/lwjgl-lmdb "3.2.3" :classifier "natives-linux" :native-prefix ""]
                  [org.lwjgl/lwjgl "3.2.3" :classifier "natives-macos" :native-prefix ""]
                  [org.lwjgl/lwjgl-lmdb "3.2.3" :classifier "natives-macos" :native-prefix ""]
-                 [org.lwjgl/lwjgl-lmdb "3.2.3"]]
+                 [org.lwjgl/lwjgl-lmdb "3.2.3"]
+                 [juxt/crux-metrics "crux-git-version-alpha" :scope "provided"]]
   :middleware [leiningen.project-version/middleware]
   :pedantic? :warn)
@@ -5,6 +5,7 @@
             [crux.checkpoint :as cp]
             [crux.codec :as c]
             [crux.error :as err]
+            [crux.io :as cio]
             [crux.kv :as kv]
             [crux.kv.index-store :as kvi]
             [crux.memory :as mem]
@@ -13,10 +14,11 @@
            java.io.Closeable
            [java.nio.file Files Path]
            java.nio.file.attribute.FileAttribute
+           [java.util.concurrent ArrayBlockingQueue TimeUnit]
+           java.util.concurrent.atomic.AtomicLong
            java.util.concurrent.locks.StampedLock
-           java.util.concurrent.TimeUnit
            org.agrona.concurrent.UnsafeBuffer
-           org.agrona.ExpandableDirectByteBuffer
+           [org.agrona DirectBuffer ExpandableDirectByteBuffer]
            [org.lwjgl.system MemoryStack MemoryUtil]
            [org.lwjgl.util.lmdb LMDB MDBEnvInfo MDBStat MDBVal]))
 
@@ -37,21 +39,45 @@
     (assert (pos? stamp) "LMDB write lock timeout")
     stamp))
 
-;; TODO: Note, this has to be done when there are no open
-;; transactions. Also, when file reached 4Gb it crashed. MDB_WRITEMAP
-;; and MDB_MAPASYNC might solve this, but doesn't allow nested
-;; transactions. See: https://github.com/dw/py-lmdb/issues/113
-(defn- increase-mapsize [^StampedLock mapsize-lock env ^long factor]
-  (let [stamp (acquire-write-lock mapsize-lock)]
-    (try
-      (with-open [stack (MemoryStack/stackPush)]
-        (let [info (MDBEnvInfo/mallocStack stack)]
-          (success? (LMDB/mdb_env_info env info))
-          (let [new-mapsize (* factor (.me_mapsize info))]
+;; Resizing has to be done when there are no open transactions, hence
+;; the write lock. Rather than waiting for a write to fail with
+;; MDB_MAP_FULL, we grow the map before any write that could leave it
+;; more than `max-mapsize-usage` full - doubling it, so resizes stay
+;; rare. A write's pages are estimated at twice its KV bytes, to leave
+;; room for page splits and copied branch pages.
+;; When file reached 4Gb it crashed. MDB_WRITEMAP and MDB_MAPASYNC might
+;; solve this, but doesn't allow nested transactions. See:
+;; https://github.com/dw/py-lmdb/issues/113
+
+(def ^:private ^:const max-mapsize-usage 0.75)
+
+(defn- env-mapsize-usage [env]
+  (with-open [stack (MemoryStack/stackPush)]
+    (let [info (MDBEnvInfo/mallocStack stack)
+          stat (MDBStat/mallocStack stack)]
+      (success? (LMDB/mdb_env_info env info))
+      (success? (LMDB/mdb_env_stat env stat))
+      {:mapsize (.me_mapsize info)
+       :used (* (inc (.me_last_pgno info)) (.ms_psize stat))})))
+
+(defn- mapsize-needed ^long [env ^long write-size]
+  (let [{:keys [mapsize used]} (env-mapsize-usage env)
+        needed (+ (long used) (* 2 write-size))]
+    (loop [mapsize (long mapsize)]
+      (if (> needed (* max-mapsize-usage mapsize))
+        (recur (* 2 mapsize))
+        mapsize))))
+
+(defn- ensure-mapsize [^StampedLock mapsize-lock env ^long write-size]
+  (when (> (mapsize-needed env write-size) (long (:mapsize (env-mapsize-usage env))))
+    (let [stamp (acquire-write-lock mapsize-lock)]
+      (try
+        (let [new-mapsize (mapsize-needed env write-size)]
+          (when (> new-mapsize (long (:mapsize (env-mapsize-usage env))))
             (log/debug "Increasing mapsize to:" new-mapsize)
-            (env-set-mapsize env new-mapsize))))
-      (finally
-        (.unlock mapsize-lock stamp)))))
+            (env-set-mapsize env new-mapsize)))
+        (finally
+          (.unlock mapsize-lock stamp))))))
 
 (defrecord LMDBTransaction [^long txn close-fn]
   Closeable
@@ -63,20 +89,104 @@
       (finally
         (close-fn)))))
 
+(defn- abort-transaction [^LMDBTransaction tx]
+  (try
+    (LMDB/mdb_txn_abort (.txn tx))
+    (finally
+      ((:close-fn tx)))))
+
+(defn- begin-txn ^long [env flags]
+  (let [[rc txn] (with-open [stack (MemoryStack/stackPush)]
+                   (let [pp (.mallocPointer stack 1)]
+                     [(LMDB/mdb_txn_begin env MemoryUtil/NULL flags pp) (.get pp)]))]
+    (if (= LMDB/MDB_MAP_RESIZED rc)
+      (do (env-set-mapsize env 0)
+          (recur env flags))
+      (do (success? rc)
+          txn))))
+
 (defn- new-transaction ^crux.lmdb.LMDBTransaction [^StampedLock mapsize-lock env flags]
   (let [txn-stamp (.readLock mapsize-lock)]
     (try
-      (with-open [stack (MemoryStack/stackPush)]
-        (let [pp (.mallocPointer stack 1)
-              rc (LMDB/mdb_txn_begin env MemoryUtil/NULL flags pp)]
-          (if (= LMDB/MDB_MAP_RESIZED rc)
-            (env-set-mapsize env 0)
-            (success? rc))
-          (->LMDBTransaction (.get pp) #(.unlock mapsize-lock txn-stamp))))
+      (->LMDBTransaction (begin-txn env flags) #(.unlock mapsize-lock txn-stamp))
       (catch Throwable t
         (.unlock mapsize-lock txn-stamp)
         (throw t)))))
 
+;; Read txns are pooled rather than begun and aborted for every
+;; snapshot: when a snapshot's closed its txn is reset, releasing the
+;; MVCC snapshot but keeping its reader slot, and the next snapshot
+;; renews it. As pooled txns keep their slots, the pool is sized to
+;; maxreaders. Txns can only move between threads like this with
+;; MDB_NOTLS, so without it we don't pool.
+
+(defrecord LMDBReadTransaction [^long txn close-fn]
+  Closeable
+  (close [_]
+    (close-fn)))
+
+(defn- renew-txn [env ^long txn]
+  (let [rc (LMDB/mdb_txn_renew txn)]
+    (if (= LMDB/MDB_SUCCESS rc)
+      txn
+      (do (LMDB/mdb_txn_abort txn)
+          (when-not (= LMDB/MDB_MAP_RESIZED rc)
+            (success? rc))))))
+
+(defn- release-read-txn [^ArrayBlockingQueue read-txns ^long txn]
+  (if read-txns
+    (do (LMDB/mdb_txn_reset txn)
+        (when-not (.offer read-txns txn)
+          (LMDB/mdb_txn_abort txn)))
+    (LMDB/mdb_txn_abort txn)))
+
+(defn clear-stale-readers
+  "Clears the reader slots of processes that have since died, returning how many there were."
+  ^long [{:keys [env]}]
+  (with-open [stack (MemoryStack/stackPush)]
+    (let [dead (.mallocInt stack 1)]
+      (success? (LMDB/mdb_reader_check env dead))
+      (.get dead 0))))
+
+(defn- begin-read-txn
+  "Slots left behind by readers in processes that have since died are
+  only reclaimed when we ask, so we do so when we run out of them."
+  ^long [{:keys [env ^AtomicLong stale-readers-cleared] :as kv-store}]
+  (try
+    (begin-txn env LMDB/MDB_RDONLY)
+    (catch ExceptionInfo e
+      (if (= LMDB/MDB_READERS_FULL (:error (ex-data e)))
+        (let [cleared (clear-stale-readers kv-store)]
+          (.addAndGet stale-readers-cleared cleared)
+          (if (pos? cleared)
+            (begin-txn env LMDB/MDB_RDONLY)
+            (throw e)))
+        (throw e)))))
+
+(defn- new-read-transaction ^crux.lmdb.LMDBReadTransaction
+  [{:keys [^StampedLock mapsize-lock env ^ArrayBlockingQueue read-txns ^AtomicLong active-read-txns] :as kv-store}]
+  (let [txn-stamp (.readLock mapsize-lock)]
+    (try
+      (let [txn (long (or (some->> (when read-txns (.poll read-txns)) (renew-txn env))
+                          (begin-read-txn kv-store)))]
+        (.incrementAndGet active-read-txns)
+        (->LMDBReadTransaction txn (fn []
+                                     (try
+                                       (release-read-txn read-txns txn)
+                                       (finally
+                                         (.decrementAndGet active-read-txns)
+                                         (.unlock mapsize-lock txn-stamp))))))
+      (catch Throwable t
+        (.unlock mapsize-lock txn-stamp)
+        (throw t)))))
+
+(defn- close-read-txns [^ArrayBlockingQueue read-txns]
+  (when read-txns
+    (loop []
+      (when-let [txn (.poll read-txns)]
+        (LMDB/mdb_txn_abort (long txn))
+        (recur)))))
+
 (defn- env-create []
   (with-open [stack (MemoryStack/stackPush)]
     (let [pp (.mallocPointer stack 1)]
@@ -131,41 +241,59 @@
       (success? rc)
       (UnsafeBuffer. (.mv_data kv) 0 (.mv_size kv)))))
 
-(defn- cursor-put [mapsize-lock env dbi kvs]
-  (with-open [stack (MemoryStack/stackPush)
-              tx (new-transaction mapsize-lock env 0)
-              cursor (new-cursor dbi (:txn tx))]
-    (let [{:keys [cursor]} cursor
-          kv (MDBVal/mallocStack stack)
-          dv (MDBVal/mallocStack stack)
-          kb (ExpandableDirectByteBuffer.)
-          vb (ExpandableDirectByteBuffer.)]
-      (doseq [[k v] kvs]
-        (let [k (mem/ensure-off-heap k kb)
-              v (mem/ensure-off-heap v vb)
-              kv (-> kv
-                     (.mv_data (MemoryUtil/memByteBuffer (.addressOffset k) (.capacity k)))
-                     (.mv_size (.capacity k)))
-              dv (.mv_size dv (.capacity v))]
-          (success? (LMDB/mdb_cursor_put cursor kv dv LMDB/MDB_RESERVE))
-          (.getBytes v 0 (.mv_data dv) (.mv_size dv)))))))
-
-(defn- tx-delete [mapsize-lock env dbi ks]
-  (with-open [stack (MemoryStack/stackPush)
-              tx (new-transaction mapsize-lock env 0)]
-    (let [{:keys [^long txn]} tx
-          kv (MDBVal/mallocStack stack)
-          kb (ExpandableDirectByteBuffer.)]
-      (doseq [k ks]
-        (let [k (mem/ensure-off-heap k kb)
-              kv (-> kv
-                     (.mv_data (MemoryUtil/memByteBuffer (.addressOffset k) (.capacity k)))
-                     (.mv_size (.capacity k)))
-              rc (LMDB/mdb_del txn dbi kv nil)]
-          (when-not (= LMDB/MDB_NOTFOUND rc)
-            (success? rc)))))))
-
-(defn- tx-get [dbi ^LMDBTransaction tx k]
+(defn- copy-to-tail ^org.agrona.DirectBuffer [^DirectBuffer k ^ExpandableDirectByteBuffer tb]
+  (.putBytes tb 0 k 0 (.capacity k))
+  (UnsafeBuffer. tb 0 (.capacity k)))
+
+;; Deletes and stores share one write txn, so one commit. Keys beyond
+;; the current last key of the DB (such as tx-events keys, or an
+;; index's KVs written in order into an empty store) are put with
+;; MDB_APPEND, which skips the B-tree search and fills pages fully
+;; rather than splitting them in half.
+
+(defn- tx-write [mapsize-lock env dbi kvs ks]
+  (let [tx (new-transaction mapsize-lock env 0)]
+    (try
+      (with-open [stack (MemoryStack/stackPush)]
+        (let [txn (.txn tx)
+              kv (MDBVal/mallocStack stack)
+              dv (MDBVal/mallocStack stack)
+              kb (ExpandableDirectByteBuffer.)
+              vb (ExpandableDirectByteBuffer.)]
+          (doseq [k ks]
+            (let [k (mem/ensure-off-heap k kb)
+                  kv (-> kv
+                         (.mv_data (MemoryUtil/memByteBuffer (.addressOffset k) (.capacity k)))
+                         (.mv_size (.capacity k)))
+                  rc (LMDB/mdb_del txn dbi kv nil)]
+              (when-not (= LMDB/MDB_NOTFOUND rc)
+                (success? rc))))
+
+          (when (seq kvs)
+            (with-open [cursor (new-cursor dbi txn)]
+              (let [cursor (.cursor cursor)
+                    tb (ExpandableDirectByteBuffer.)]
+                (loop [kvs (seq kvs)
+                       tail (some-> (cursor->key cursor kv dv LMDB/MDB_LAST) (copy-to-tail tb))]
+                  (when kvs
+                    (let [[k v] (first kvs)
+                          k (mem/ensure-off-heap k kb)
+                          v (mem/ensure-off-heap v vb)
+                          append? (or (nil? tail) (pos? (mem/compare-buffers k tail)))
+                          kv (-> kv
+                                 (.mv_data (MemoryUtil/memByteBuffer (.addressOffset k) (.capacity k)))
+                                 (.mv_size (.capacity k)))
+                          dv (.mv_size dv (.capacity v))]
+                      (success? (LMDB/mdb_cursor_put cursor kv dv (cond-> LMDB/MDB_RESERVE
+                                                                    append? (bit-or LMDB/MDB_APPEND))))
+                      (.getBytes v 0 (.mv_data dv) (.mv_size dv))
+                      (recur (next kvs) (if append? (copy-to-tail k tb) tail))))))))))
+      (catch Throwable t
+        (abort-transaction tx)
+        (throw t)))
+    (.close tx)))
+
+(defn- tx-get [dbi ^LMDBReadTransaction tx k]
   (with-open [stack (MemoryStack/stackPush)]
     (let [k (mem/->off-heap k)
           kv (-> (MDBVal/mallocStack stack)
@@ -184,7 +312,7 @@
                                        LMDB/MDB_NOSYNC
                                        LMDB/MDB_NOMETASYNC))
 
-(defrecord LMDBKvIterator [^LMDBCursor cursor ^LMDBTransaction tx ^MDBVal kv ^MDBVal dv ^ExpandableDirectByteBuffer eb]
+(defrecord LMDBKvIterator [^LMDBCursor cursor ^LMDBReadTransaction tx ^MDBVal kv ^MDBVal dv ^ExpandableDirectByteBuffer eb]
   kv/KvIterator
   (seek [_ k]
     (let [k (mem/ensure-off-heap k eb)
@@ -206,7 +334,7 @@
   (close [_]
     (.close cursor)))
 
-(defrecord LMDBKvSnapshot [env dbi ^LMDBTransaction tx]
+(defrecord LMDBKvSnapshot [env dbi ^LMDBReadTransaction tx]
   kv/KvSnapshot
   (new-iterator [_]
     (->LMDBKvIterator (new-cursor dbi (.txn tx))
@@ -222,47 +350,58 @@
   (close [_]
     (.close tx)))
 
-(def ^:dynamic ^{:tag 'long} *mapsize-increase-factor* 1)
-(def ^:const max-mapsize-increase-factor 32)
-
-(defrecord LMDBKv [db-dir env env-flags dbi ^StampedLock mapsize-lock]
+(def ^:private ^:const max-write-attempts 5)
+
+(defn- write-kvs [{:keys [mapsize-lock env dbi]} kvs ks]
+  (let [write-size (+ (long (transduce (comp (mapcat seq) (map mem/capacity)) + kvs))
+                      (long (transduce (map mem/capacity) + ks)))]
+    (loop [attempt 1]
+      (ensure-mapsize mapsize-lock env (* attempt write-size))
+      (when (= ::map-full (try
+                            (tx-write mapsize-lock env dbi kvs ks)
+                            (catch ExceptionInfo e
+                              (if (and (= LMDB/MDB_MAP_FULL (:error (ex-data e)))
+                                       (< attempt max-write-attempts))
+                                ::map-full
+                                (throw e)))))
+        ;; our estimate was short - try again, asking for more room
+        (recur (inc attempt))))))
+
+(defn reader-stats
+  "Reader slot usage of the store's LMDB env, and of its pool of read
+  txns - `:stale-readers-cleared` being the stale slots cleared when we
+  ran out of them."
+  [{:keys [env ^ArrayBlockingQueue read-txns ^AtomicLong active-read-txns ^AtomicLong stale-readers-cleared]}]
+  (with-open [stack (MemoryStack/stackPush)]
+    (let [info (MDBEnvInfo/mallocStack stack)]
+      (success? (LMDB/mdb_env_info env info))
+      {:max-readers (.me_maxreaders info)
+       :reader-slots-used (.me_numreaders info)
+       :pooled-read-txns (if read-txns (.size read-txns) 0)
+       :active-read-txns (.get active-read-txns)
+       :stale-readers-cleared (.get stale-readers-cleared)})))
+
+(defrecord LMDBKv [db-dir env env-flags dbi ^StampedLock mapsize-lock
+                   ^ArrayBlockingQueue read-txns ^AtomicLong active-read-txns ^AtomicLong stale-readers-cleared
+                   ^Closeable metrics]
   kv/KvStore
-  (new-snapshot [_]
-    (let [tx (new-transaction mapsize-lock env LMDB/MDB_RDONLY)]
-      (->LMDBKvSnapshot env dbi tx)))
+  (new-snapshot [this]
+    (->LMDBKvSnapshot env dbi (new-read-transaction this)))
 
   (store [this kvs]
-    (try
-      (cursor-put mapsize-lock env dbi kvs)
-      (catch ExceptionInfo e
-        (if (= LMDB/MDB_MAP_FULL (:error (ex-data e)))
-          (binding [*mapsize-increase-factor* (* 2 *mapsize-increase-factor*)]
-            (when (> *mapsize-increase-factor* max-mapsize-increase-factor)
-              (throw (IllegalStateException. "Too large size of key values to store at once.")))
-            (increase-mapsize mapsize-lock env *mapsize-increase-factor*)
-            (kv/store this kvs))
-          (throw e)))))
+    (write-kvs this kvs nil))
 
   (delete [this ks]
-    (try
-      (tx-delete mapsize-lock env dbi ks)
-      (catch ExceptionInfo e
-        (if (= LMDB/MDB_MAP_FULL (:error (ex-data e)))
-          (binding [*mapsize-increase-factor* (* 2 *mapsize-increase-factor*)]
-            (when (> *mapsize-increase-factor* max-mapsize-increase-factor)
-              (throw (IllegalStateException. "Too large size of keys to delete at once.")))
-            (increase-mapsize mapsize-lock env *mapsize-increase-factor*)
-            (kv/delete this ks))
-          (throw e)))))
+    (write-kvs this nil ks))
 
   (compact [_])
 
   (fsync [this]
     (success? (LMDB/mdb_env_sync env true)))
 
-  (count-keys [_]
+  (count-keys [this]
     (with-open [stack (MemoryStack/stackPush)
-                tx (new-transaction mapsize-lock env LMDB/MDB_RDONLY)]
+                tx (new-read-transaction this)]
       (let [stat (MDBStat/mallocStack stack)]
         (LMDB/mdb_stat (.txn tx) dbi stat)
         (.ms_entries stat))))
@@ -273,6 +412,10 @@
   (kv-name [this]
     (.getName (class this)))
 
+  kv/KvWriteBatch
+  (write-batch [this kvs ks]
+    (write-kvs this kvs ks))
+
   cp/CheckpointSource
   (save-checkpoint [this dir]
     (let [tx (kvi/latest-completed-tx this)]
@@ -281,8 +424,10 @@
 
   Closeable
   (close [_]
+    (cio/try-close metrics)
     (let [stamp (acquire-write-lock mapsize-lock)]
       (try
+        (close-read-txns read-txns)
         (env-close env)
         (finally
           (.unlock mapsize-lock stamp))))))
@@ -291,7 +436,8 @@
   {:index-version c/index-version
    ::version "3"})
 
-(defn ->kv-store {::sys/deps {:checkpointer (fn [_])}
+(defn ->kv-store {::sys/deps {:checkpointer (fn [_])
+                              :metrics (fn [_])}
                   ::sys/args (-> {:db-dir {:doc "Directory to store K/V files"
                                            :required? true
                                            :spec ::sys/path}
@@ -302,10 +448,10 @@
                                               :spec ::sys/nat-int}
                                   :env-mapsize {:doc "LMDB Map size"
                                                 :spec ::sys/nat-int}
-                                  :env-maxreaders {:doc "LMDB Max readers"
+                                  :env-maxreaders {:doc "LMDB Max readers, which is also the most read txns we keep for reuse"
                                                    :default 1024
                                                    :spec ::sys/nat-int}})}
-  [{:keys [^Path db-dir checkpointer sync? env-flags env-mapsize env-maxreaders]}]
+  [{:keys [^Path db-dir checkpointer metrics sync? env-flags env-mapsize env-maxreaders]}]
 
   (some-> checkpointer (cp/try-restore (.toFile db-dir) cp-format))
 
@@ -326,7 +472,13 @@
                                    :env env
                                    :env-flags env-flags
                                    :dbi (dbi-open mapsize-lock env)
-                                   :mapsize-lock mapsize-lock})]
+                                   :mapsize-lock mapsize-lock
+                                   :read-txns (when (pos? (bit-and (long env-flags) LMDB/MDB_NOTLS))
+                                                (ArrayBlockingQueue. (max 1 (long env-maxreaders))))
+                                   :active-read-txns (AtomicLong.)
+                                   :stale-readers-cleared (AtomicLong.)})
+            kv-store (cond-> kv-store
+                       metrics (assoc :metrics (metrics kv-store)))]
         (cond-> kv-store
           checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format}))))
       (catch Throwable t
@@ -0,0 +1,24 @@
+(ns ^:no-doc crux.lmdb.metrics
+  (:require [crux.lmdb :as lmdb]
+            [crux.metrics :as m]
+            [crux.metrics.dropwizard :as dw]
+            [crux.system :as sys])
+  (:import java.io.Closeable))
+
+(defn ->metrics {::sys/deps {:registry ::m/registry}
+                 ::sys/args {:instance-name {:doc "unique name for this instance of LMDB, used in metrics domains"
+                                             :default "lmdb"
+                                             :spec ::sys/string
+                                             :required? true}}}
+  [{:keys [registry instance-name]}]
+  (fn [kv-store]
+    (doseq [[k gauge-name] {:max-readers "max-readers"
+                            :reader-slots-used "reader-slots-used"
+                            :pooled-read-txns "pooled-read-txns"
+                            :active-read-txns "active-read-txns"
+                            :stale-readers-cleared "stale-readers-cleared"}]
+      (dw/gauge registry [instance-name gauge-name]
+                #(get (lmdb/reader-stats kv-store) k)))
+
+    (reify Closeable
+      (close [_]))))
@@ -1,6 +1,8 @@
 (ns ^:no-doc crux.metrics.index-store
   (:require [crux.bus :as bus]
             [crux.api :as api]
+            [crux.cache :as cache]
+            [crux.memory :as mem]
             [crux.tx :as tx]
             [crux.metrics.dropwizard :as dropwizard])
   (:import (java.util Date)))
@@ -66,13 +68,41 @@
                       (swap! !timer-store dissoc submitted-tx)))))
     timer))
 
+(defn assign-decoded-value-cache-gauges [registry {:crux/keys [index-store]}]
+  (let [decoded-value-cache (:decoded-value-cache index-store)]
+    (when (satisfies? cache/CacheStats decoded-value-cache)
+      (letfn [(stats-gauge [k]
+                (dropwizard/gauge registry
+                                  ["index-store" "decoded-value-cache" (name k)]
+                                  #(get (cache/cache-stats decoded-value-cache) k)))]
+        {:decoded-value-cache-hits (stats-gauge :hits)
+         :decoded-value-cache-misses (stats-gauge :misses)
+         :decoded-value-cache-bytes (stats-gauge :weight)}))))
+
+(defn assign-memory-gauges [registry _]
+  (letfn [(stats-gauge [k]
+            (dropwizard/gauge registry
+                              ["index-store" "memory" (name k)]
+                              #(get (mem/allocation-stats) k)))]
+    {:memory-pool-in-use (stats-gauge :in-use)
+     :memory-arena-in-use (stats-gauge :arena-in-use)}))
+
+(defn assign-tx-consumer-lag-gauge [registry {:crux/keys [node]}]
+  (when-let [!consumer-lag (get-in node [:tx-log :tx-buffer :!consumer-lag])]
+    {:tx-consumer-lag (dropwizard/gauge registry
+                                        ["tx-log" "consumer-lag"]
+                                        #(deref !consumer-lag))}))
+
 (defn assign-listeners
   "Assigns listeners to an event bus for a given node.
   Returns an atom containing updating metrics"
   [registry deps]
-  {:tx-id-lag (assign-tx-id-lag registry deps)
-   :tx-latency-gauge (assign-tx-latency-gauge registry deps)
-   :docs-ingested-meter (assign-doc-meter registry deps)
-   :av-ingested-meter (assign-av-meter registry deps)
-   :bytes-ingested-meter (assign-bytes-meter registry deps)
-   :tx-ingest-timer (assign-tx-timer registry deps)})
+  (merge {:tx-id-lag (assign-tx-id-lag registry deps)
+          :tx-latency-gauge (assign-tx-latency-gauge registry deps)
+          :docs-ingested-meter (assign-doc-meter registry deps)
+          :av-ingested-meter (assign-av-meter registry deps)
+          :bytes-ingested-meter (assign-bytes-meter registry deps)
+          :tx-ingest-timer (assign-tx-timer registry deps)}
+         (assign-decoded-value-cache-gauges registry deps)
+         (assign-memory-gauges registry deps)
+         (assign-tx-consumer-lag-gauge registry deps)))
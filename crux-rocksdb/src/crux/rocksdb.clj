@@ -8,52 +8,189 @@
             [crux.system :as sys]
             [crux.io :as cio]
             [crux.checkpoint :as cp]
+            [crux.error :as err]
             [crux.kv.index-store :as kvi]
             [crux.codec :as c])
   (:import (java.io Closeable File)
            java.nio.ByteBuffer
+           java.util.ArrayList
            (java.nio.file Files Path)
            java.nio.file.attribute.FileAttribute
-           (org.rocksdb Checkpoint CompressionType FlushOptions LRUCache
-                        Options ReadOptions RocksDB RocksIterator
+           (org.agrona DirectBuffer ExpandableDirectByteBuffer)
+           org.agrona.concurrent.UnsafeBuffer
+           (org.rocksdb BlockBasedTableConfig BloomFilter Checkpoint ColumnFamilyDescriptor ColumnFamilyHandle ColumnFamilyOptions
+                        CompactionStyle CompressionType DBOptions EnvOptions FlushOptions IndexType IngestExternalFileOptions
+                        LRUCache Options ReadOptions RocksDB RocksIterator SstFileWriter
                         WriteBatch WriteOptions Statistics StatsLevel)))
 
 (set! *unchecked-math* :warn-on-boxed)
 
-(defn- iterator->key [^RocksIterator i]
+;; Keys and values are read into direct buffers owned by the iterator,
+;; rather than copied into a fresh byte[] each time, and returned
+;; through a view that's re-wrapped on each call. As with the JNR
+;; backend, what we return is only valid until the next call on the
+;; same iterator.
+
+(defn- ->iterator-buffer ^org.agrona.ExpandableDirectByteBuffer []
+  (ExpandableDirectByteBuffer. 128))
+
+(defn- ->iterator-view ^org.agrona.concurrent.UnsafeBuffer []
+  (UnsafeBuffer. (byte-array 0)))
+
+(defn- iterator->key ^org.agrona.DirectBuffer [^RocksIterator i ^ExpandableDirectByteBuffer b ^UnsafeBuffer view]
   (when (.isValid i)
-    (mem/as-buffer (.key i))))
+    (loop []
+      (let [len (.key i (doto (.byteBuffer b) (.clear)))]
+        (if (> len (.capacity b))
+          (do (.checkLimit b len) (recur))
+          (doto view (.wrap b 0 len)))))))
+
+(defn- iterator->value ^org.agrona.DirectBuffer [^RocksIterator i ^ExpandableDirectByteBuffer b ^UnsafeBuffer view]
+  (loop []
+    (let [len (.value i (doto (.byteBuffer b) (.clear)))]
+      (if (> len (.capacity b))
+        (do (.checkLimit b len) (recur))
+        (doto view (.wrap b 0 len))))))
 
-(defrecord RocksKvIterator [^RocksIterator i]
+(defrecord RocksKvIterator [^RocksIterator i
+                            ^ExpandableDirectByteBuffer key-buffer ^UnsafeBuffer key-view
+                            ^ExpandableDirectByteBuffer value-buffer ^UnsafeBuffer value-view
+                            ^ReadOptions read-options]
   kv/KvIterator
   (seek [this k]
     (.seek i (mem/direct-byte-buffer k))
-    (iterator->key i))
+    (iterator->key i key-buffer key-view))
 
   (next [this]
     (.next i)
-    (iterator->key i))
+    (iterator->key i key-buffer key-view))
 
   (prev [this]
     (.prev i)
-    (iterator->key i))
+    (iterator->key i key-buffer key-view))
 
   (value [this]
-    (mem/as-buffer (.value i)))
+    (iterator->value i value-buffer value-view))
 
   Closeable
   (close [this]
-    (.close i)))
+    (.close i)
+    (some-> read-options .close)))
+
+;; With :column-families? each index id in crux.codec gets its own
+;; column family, and keys starting with any other byte go to the
+;; default family. Index ids are numbered from zero without gaps, so
+;; ordering the families by index id (default last) keeps the union of
+;; them in the same order as a single keyspace - iterators walk the
+;; families in turn rather than merging them.
+
+(def ^:private column-family-profiles
+  {c/content-hash->doc-index-id :docs
+   c/ave-index-id :prefix-scan
+   c/ecav-index-id :prefix-scan
+   c/hash-cache-index-id :point-lookup
+   c/meta-key->value-index-id :point-lookup
+   c/failed-tx-id-index-id :point-lookup
+   c/index-version-index-id :point-lookup
+   c/entity+vt+tt+tx-id->content-hash-index-id :sequential-scan
+   c/tx-events-index-id :append-only
+   c/entity+z+tx-id->content-hash-index-id :sequential-scan
+   c/av-index-id :prefix-scan
+   c/ae-index-id :prefix-scan
+   c/tx-time-mapping-id :append-only})
+
+(def ^:private ^:const default-column-family-segment (count column-family-profiles))
+
+(defn- key->segment ^long [k]
+  (let [k ^DirectBuffer (mem/as-buffer k)]
+    (if (zero? (.capacity k))
+      0
+      (min (bit-and (.getByte k 0) 0xff) default-column-family-segment))))
+
+(deftype RocksCfKvIterator [^objects iterators
+                            ^:unsynchronized-mutable ^long segment
+                            ^ExpandableDirectByteBuffer key-buffer ^UnsafeBuffer key-view
+                            ^ExpandableDirectByteBuffer value-buffer ^UnsafeBuffer value-view
+                            ^ReadOptions read-options]
+  kv/KvIterator
+  (seek [this k]
+    (set! segment (key->segment k))
+    (.seek ^RocksIterator (aget iterators segment) (mem/direct-byte-buffer k))
+    (loop []
+      (let [i ^RocksIterator (aget iterators segment)]
+        (cond
+          (.isValid i) (iterator->key i key-buffer key-view)
+          (< segment default-column-family-segment) (do (set! segment (inc segment))
+                                                         (.seekToFirst ^RocksIterator (aget iterators segment))
+                                                         (recur))
+          :else nil))))
+
+  (next [this]
+    (.next ^RocksIterator (aget iterators segment))
+    (loop []
+      (let [i ^RocksIterator (aget iterators segment)]
+        (cond
+          (.isValid i) (iterator->key i key-buffer key-view)
+          (< segment default-column-family-segment) (do (set! segment (inc segment))
+                                                         (.seekToFirst ^RocksIterator (aget iterators segment))
+                                                         (recur))
+          :else nil))))
 
-(defrecord RocksKvSnapshot [^RocksDB db ^ReadOptions read-options snapshot]
+  (prev [this]
+    (.prev ^RocksIterator (aget iterators segment))
+    (loop []
+      (let [i ^RocksIterator (aget iterators segment)]
+        (cond
+          (.isValid i) (iterator->key i key-buffer key-view)
+          (pos? segment) (do (set! segment (dec segment))
+                             (.seekToLast ^RocksIterator (aget iterators segment))
+                             (recur))
+          :else nil))))
+
+  (value [this]
+    (iterator->value (aget iterators segment) value-buffer value-view))
+
+  Closeable
+  (close [this]
+    (doseq [^RocksIterator i iterators]
+      (.close i))
+    (some-> read-options .close)))
+
+(defn- new-iterator [^RocksDB db column-families ^ReadOptions read-options owned-read-options]
+  (if column-families
+    (->RocksCfKvIterator (object-array (.newIterators db ^java.util.List column-families read-options))
+                         0
+                         (->iterator-buffer) (->iterator-view)
+                         (->iterator-buffer) (->iterator-view)
+                         owned-read-options)
+    (->RocksKvIterator (.newIterator db read-options)
+                       (->iterator-buffer) (->iterator-view)
+                       (->iterator-buffer) (->iterator-view)
+                       owned-read-options)))
+
+(defn- key->column-family ^org.rocksdb.ColumnFamilyHandle [column-families k]
+  (nth column-families (key->segment k)))
+
+(defrecord RocksKvSnapshot [^RocksDB db ^ReadOptions read-options snapshot prefix-seek? column-families]
   kv/KvSnapshot
   (new-iterator [this]
-    (->RocksKvIterator (.newIterator db read-options)))
+    (new-iterator db column-families read-options nil))
 
   (get-value [this k]
-    (some-> (.get db read-options (mem/->on-heap k))
+    (some-> (if column-families
+              (.get db (key->column-family column-families k) read-options (mem/->on-heap k))
+              (.get db read-options (mem/->on-heap k)))
             (mem/as-buffer)))
 
+  kv/KvPrefixSnapshot
+  (new-prefix-iterator [this]
+    (if prefix-seek?
+      (let [prefix-read-options (doto (ReadOptions.)
+                                  (.setSnapshot snapshot)
+                                  (.setPrefixSameAsStart true))]
+        (new-iterator db column-families prefix-read-options prefix-read-options))
+      (kv/new-iterator this)))
+
   Closeable
   (close [_]
     (.close read-options)
@@ -62,38 +199,139 @@
 (def ^:private default-block-cache-size (* 128 1024 1024))
 (def ^:private default-block-size (* 16 1024))
 
-(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, ^Closeable cp-job, db-dir]
+;; Every index key starts with a one-byte index id and an id, and most
+;; of our scans stay within one such prefix - so with :prefix-filters?
+;; we give RocksDB a prefix extractor capped at that length, bloom
+;; filters on both prefixes and whole keys (for get-value), and
+;; partitioned index/filter blocks. Iterators from new-prefix-iterator
+;; seek in prefix mode; all others ask for a total-order seek, as their
+;; seeks can cross prefixes.
+
+(def ^:private ^:const prefix-length (+ c/index-id-size c/id-size))
+
+(defn- ->prefix-filter-table-config ^org.rocksdb.BlockBasedTableConfig [^LRUCache block-cache]
+  (doto (BlockBasedTableConfig.)
+    (.setBlockSize default-block-size)
+    (.setBlockCache block-cache)
+    (.setFilterPolicy (BloomFilter. 10 false))
+    (.setWholeKeyFiltering true)
+    (.setIndexType IndexType/kTwoLevelIndexSearch)
+    (.setPartitionFilters true)
+    (.setMetadataBlockSize 4096)
+    (.setCacheIndexAndFilterBlocks true)
+    (.setCacheIndexAndFilterBlocksWithHighPriority true)
+    (.setPinTopLevelIndexAndFilter true)))
+
+(defn- ->table-config ^org.rocksdb.BlockBasedTableConfig [^LRUCache block-cache block-size bloom?]
+  (doto (BlockBasedTableConfig.)
+    (.setBlockSize (long block-size))
+    (.setBlockCache block-cache)
+    (cond-> bloom? (.setFilterPolicy (BloomFilter. 10 false)))
+    (.setCacheIndexAndFilterBlocks true)))
+
+(defn- ->column-family-options ^org.rocksdb.ColumnFamilyOptions [profile ^LRUCache block-cache]
+  (let [cf-options (doto (ColumnFamilyOptions.)
+                     (.setCompressionType CompressionType/LZ4_COMPRESSION)
+                     (.setBottommostCompressionType CompressionType/ZSTD_COMPRESSION)
+                     (.setLevelCompactionDynamicLevelBytes true))]
+    (case profile
+      ;; large values, written once and only ever read by key
+      :docs (doto cf-options
+              (.setCompressionType CompressionType/ZSTD_COMPRESSION)
+              (.setTableFormatConfig (->table-config block-cache (* 4 default-block-size) true)))
+
+      :point-lookup (doto cf-options
+                      (.setTableFormatConfig (->table-config block-cache default-block-size true)))
+
+      :prefix-scan (doto cf-options
+                     (.useCappedPrefixExtractor prefix-length)
+                     (.setMemtablePrefixBloomSizeRatio 0.1)
+                     (.setTableFormatConfig (->prefix-filter-table-config block-cache)))
+
+      ;; scanned in key order from a seek rather than probed, so
+      ;; blooms wouldn't pay for themselves
+      :sequential-scan (doto cf-options
+                         (.setTableFormatConfig (->table-config block-cache (* 4 default-block-size) false)))
+
+      ;; keys arrive in increasing order and are never overwritten
+      :append-only (doto cf-options
+                     (.setCompactionStyle CompactionStyle/UNIVERSAL)
+                     (.setTableFormatConfig (->table-config block-cache (* 4 default-block-size) false)))
+
+      :default (doto cf-options
+                 (.setTableFormatConfig (->table-config block-cache default-block-size false))))))
+
+(defn- column-family-name ^bytes [^long segment]
+  (if (= segment default-column-family-segment)
+    RocksDB/DEFAULT_COLUMN_FAMILY
+    (.getBytes (str "index-" segment))))
+
+(defn- check-column-families [^Options opts ^String db-path column-families?]
+  (when (.exists (io/file db-path "CURRENT"))
+    (let [created-with-column-families? (> (count (RocksDB/listColumnFamilies opts db-path)) 1)]
+      (when-not (= (boolean column-families?) created-with-column-families?)
+        (throw (err/illegal-arg ::column-families-mismatch
+                                {::err/message (format "RocksDB at '%s' was created %s :column-families?"
+                                                       db-path (if created-with-column-families? "with" "without"))}))))))
+
+(defn- open-db [^Options opts ^String db-path column-family-options]
+  (if column-family-options
+    (let [db-options (doto (DBOptions. opts)
+                       (.setCreateMissingColumnFamilies true))
+          handles (ArrayList.)]
+      (try
+        {:db (RocksDB/open db-options db-path
+                           (vec (map-indexed (fn [segment ^ColumnFamilyOptions cf-options]
+                                               (ColumnFamilyDescriptor. (column-family-name segment) cf-options))
+                                             column-family-options))
+                           handles)
+         :column-families (vec handles)
+         :cf-db-options db-options}
+        (catch Throwable t
+          (.close db-options)
+          (throw t))))
+    {:db (RocksDB/open opts db-path)}))
+
+(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, ^Closeable cp-job, db-dir
+                    prefix-filters? block-cache column-families column-family-options cf-db-options]
   kv/KvStore
   (new-snapshot [_]
-    (let [snapshot (.getSnapshot db)]
+    (let [snapshot (.getSnapshot db)
+          prefix-seek? (or prefix-filters? (some? column-families))]
       (->RocksKvSnapshot db
                          (doto (ReadOptions.)
-                           (.setSnapshot snapshot))
-                         snapshot)))
+                           (.setSnapshot snapshot)
+                           (cond-> prefix-seek? (.setTotalOrderSeek true)))
+                         snapshot
+                         prefix-seek?
+                         column-families)))
 
-  (store [_ kvs]
-    (with-open [wb (WriteBatch.)]
-      (doseq [[k v] kvs]
-        (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v)))
-      (.write db write-options wb)))
+  (store [this kvs]
+    (kv/write-batch this kvs nil))
 
-  (delete [_ ks]
-    (with-open [wb (WriteBatch.)]
-      (doseq [k ks]
-        (.remove wb (mem/direct-byte-buffer k)))
-      (.write db write-options wb)))
+  (delete [this ks]
+    (kv/write-batch this nil ks))
 
   (compact [_]
-    (.compactRange db))
+    (if column-families
+      (doseq [^ColumnFamilyHandle cf column-families]
+        (.compactRange db cf))
+      (.compactRange db)))
 
   (fsync [_]
     (with-open [flush-options (doto (FlushOptions.)
                                 (.setWaitForFlush true))]
-      (.flush db flush-options)))
+      (if column-families
+        (.flush db flush-options ^java.util.List column-families)
+        (.flush db flush-options))))
 
   (count-keys [_]
-    (-> (.getProperty db "rocksdb.estimate-num-keys")
-        (Long/parseLong)))
+    (if column-families
+      (->> (for [^ColumnFamilyHandle cf column-families]
+             (Long/parseLong (.getProperty db cf "rocksdb.estimate-num-keys")))
+           (reduce +))
+      (-> (.getProperty db "rocksdb.estimate-num-keys")
+          (Long/parseLong))))
 
   (db-dir [_]
     (str db-dir))
@@ -101,6 +339,19 @@
   (kv-name [this]
     (.getName (class this)))
 
+  kv/KvWriteBatch
+  (write-batch [_ kvs ks]
+    (with-open [wb (WriteBatch.)]
+      (doseq [k ks]
+        (if column-families
+          (.remove wb (key->column-family column-families k) (mem/direct-byte-buffer k))
+          (.remove wb (mem/direct-byte-buffer k))))
+      (doseq [[k v] kvs]
+        (if column-families
+          (.put wb (key->column-family column-families k) (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
+          (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))))
+      (.write db write-options wb)))
+
   cp/CheckpointSource
   (save-checkpoint [this dir]
     (cio/delete-dir dir)
@@ -111,11 +362,62 @@
 
   Closeable
   (close [_]
+    (run! cio/try-close column-families)
     (cio/try-close db)
     (cio/try-close options)
+    (cio/try-close cf-db-options)
+    (run! cio/try-close column-family-options)
     (cio/try-close write-options)
     (cio/try-close metrics)
-    (cio/try-close cp-job)))
+    (cio/try-close cp-job)
+    (cio/try-close block-cache)))
+
+(def ^:private ^:const max-sst-file-size (* 256 1024 1024))
+
+(defn- write-sst-files
+  "Writes KVs to SST files until `pred` returns false for a key, returning
+  the files written and the remaining KVs."
+  [^Options options kvs pred ^File sst-dir]
+  (with-open [env-options (EnvOptions.)]
+    (loop [kvs (seq kvs)
+           files []]
+      (if-not (and kvs (pred (ffirst kvs)))
+        [files kvs]
+        (let [file (io/file sst-dir (format "%06d.sst" (count files)))
+              kvs (with-open [writer (SstFileWriter. env-options options)]
+                    (.open writer (str file))
+                    (loop [kvs kvs
+                           size 0]
+                      (if (and kvs (< size max-sst-file-size) (pred (ffirst kvs)))
+                        (let [[k v] (first kvs)
+                              k (mem/->on-heap k)
+                              v (mem/->on-heap v)]
+                          (.put writer ^bytes k ^bytes v)
+                          (recur (next kvs) (+ size (alength ^bytes k) (alength ^bytes v))))
+                        (do (.finish writer)
+                            kvs))))]
+          (recur kvs (conj files (str file))))))))
+
+(defn ingest-sorted-kvs
+  "Writes the KVs - sorted by key, without duplicates - to SST files
+  under sst-dir, and moves them into the store. For offline bulk loads:
+  RocksDB won't ingest files overlapping keys already in the store."
+  [{:keys [^RocksDB db ^Options options column-families column-family-options cf-db-options]} kvs ^File sst-dir]
+  (with-open [ingest-options (doto (IngestExternalFileOptions.)
+                               (.setMoveFiles true))]
+    (if column-families
+      (loop [kvs (seq kvs)]
+        (when kvs
+          (let [segment (key->segment (ffirst kvs))
+                [files kvs] (with-open [segment-options (Options. ^DBOptions cf-db-options
+                                                                  ^ColumnFamilyOptions (nth column-family-options segment))]
+                              (write-sst-files segment-options kvs #(= segment (key->segment %))
+                                               (doto (io/file sst-dir (str segment)) (.mkdirs))))]
+            (.ingestExternalFile db ^ColumnFamilyHandle (nth column-families segment) ^java.util.List files ingest-options)
+            (recur kvs))))
+      (let [[files] (write-sst-files options kvs (constantly true) (doto sst-dir (.mkdirs)))]
+        (when (seq files)
+          (.ingestExternalFile db ^java.util.List files ingest-options))))))
 
 (def ^:private cp-format {:index-version c/index-version, ::version "6"})
 
@@ -131,8 +433,14 @@
                                            :spec #(instance? Options %)}
                               :disable-wal? {:doc "Disable Write Ahead Log"
                                              :default false
-                                             :spec ::sys/boolean}}}
-  [{:keys [^Path db-dir sync? disable-wal? metrics checkpointer db-options] :as options}]
+                                             :spec ::sys/boolean}
+                              :prefix-filters? {:doc "Tune RocksDB to Crux's key layout: a prefix extractor, prefix and whole-key bloom filters, and partitioned index/filter blocks. Overrides the table format of any :db-options."
+                                                :default false
+                                                :spec ::sys/boolean}
+                              :column-families? {:doc "Store each index in its own column family, tuned to how that index is read. Only the DB-wide settings of any :db-options apply. Can't be changed for an existing store."
+                                                 :default false
+                                                 :spec ::sys/boolean}}}
+  [{:keys [^Path db-dir sync? disable-wal? metrics checkpointer db-options prefix-filters? column-families?] :as options}]
 
   (RocksDB/loadLibrary)
 
@@ -140,21 +448,38 @@
     (cp/try-restore checkpointer (.toFile db-dir) cp-format))
 
   (let [stats (when metrics (doto (Statistics.) (.setStatsLevel (StatsLevel/EXCEPT_DETAILED_TIMERS))))
+        block-cache (when (or prefix-filters? column-families?) (LRUCache. default-block-cache-size))
+        column-family-options (when column-families?
+                                (vec (for [segment (range (inc default-column-family-segment))]
+                                       (->column-family-options (get column-family-profiles segment :default) block-cache))))
         opts (doto (or ^Options db-options (Options.))
                (cond-> metrics (.setStatistics stats))
+               (cond-> prefix-filters? (-> (.useCappedPrefixExtractor prefix-length)
+                                           (.setMemtablePrefixBloomSizeRatio 0.1)
+                                           (.setTableFormatConfig (->prefix-filter-table-config block-cache))))
                (.setCompressionType CompressionType/LZ4_COMPRESSION)
                (.setBottommostCompressionType CompressionType/ZSTD_COMPRESSION)
                (.setCreateIfMissing true))
 
-        db (try
-             (RocksDB/open opts (-> (Files/createDirectories db-dir (make-array FileAttribute 0))
-                                    (.toAbsolutePath)
-                                    (str)))
-             (catch Throwable t
-               (.close opts)
-               (throw t)))
+        {:keys [db column-families cf-db-options]}
+        (try
+          (let [db-path (-> (Files/createDirectories db-dir (make-array FileAttribute 0))
+                            (.toAbsolutePath)
+                            (str))]
+            (check-column-families opts db-path column-families?)
+            (open-db opts db-path column-family-options))
+          (catch Throwable t
+            (.close opts)
+            (run! cio/try-close column-family-options)
+            (cio/try-close block-cache)
+            (throw t)))
         metrics (when metrics (metrics db stats))
         kv-store (map->RocksKv {:db-dir db-dir
+                                :prefix-filters? prefix-filters?
+                                :block-cache block-cache
+                                :column-families column-families
+                                :column-family-options column-family-options
+                                :cf-db-options cf-db-options
                                 :options opts
                                 :db db
                                 :metrics metrics
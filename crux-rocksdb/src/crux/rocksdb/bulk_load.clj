@@ -0,0 +1,157 @@
+(ns ^:no-doc crux.rocksdb.bulk-load
+  "Offline bulk loads into the RocksDB stores of a standalone node."
+  (:require [clojure.java.io :as io]
+            [clojure.tools.logging :as log]
+            [crux.codec :as c]
+            [crux.error :as err]
+            [crux.io :as cio]
+            [crux.kv.document-store :as kvds]
+            [crux.kv.index-store :as kvi]
+            [crux.kv.tx-log :as kvtx]
+            [crux.memory :as mem]
+            [crux.rocksdb :as rocks]
+            [crux.stats :as stats]
+            [crux.system :as sys]
+            [crux.tx :as tx]
+            [crux.tx.conform :as txc])
+  (:import java.util.Arrays
+           java.util.Date))
+
+;; Rather than submitting txs and having the tx ingester index them,
+;; we generate every KV the tx-log, document store and index store
+;; would end up with, externally sort them (by store, then key), and
+;; write each store's run straight to SST files for RocksDB to ingest -
+;; so none of it goes through the memtables or gets compacted.
+
+(def ^:private stores [:tx-log :document-store :index-store])
+
+(defn- conform-put [tx-op]
+  (let [{:keys [op end-valid-time] :as conformed-op} (txc/conform-tx-op tx-op)]
+    (when-not (and (= :crux.tx/put op) (nil? end-valid-time))
+      (throw (err/illegal-arg ::unsupported-tx-op
+                              {::err/message "Bulk loads only support :crux.tx/put ops without an end valid time"
+                               :op tx-op})))
+    conformed-op))
+
+(defn- tx-kvs [tx puts]
+  {:tx-log [[(kvtx/encode-tx-event-key-to nil tx)
+             (mem/->nippy-buffer (mapv txc/->tx-event puts))]]
+   :document-store (for [{:keys [docs]} puts
+                         [doc-id doc] docs]
+                     [(kvds/encode-doc-key-to nil (c/->id-buffer doc-id))
+                      (mem/->nippy-buffer doc)])
+   :index-store (kvi/bulk-put-kvs tx puts)})
+
+(defn- add-tx-stats
+  "Accumulates the attribute stats and sketches the tx ingester would
+  have written after indexing the tx's docs."
+  [{:keys [attribute-stats sketches]} puts]
+  (let [docs (vals (into {} (mapcat :docs) puts))]
+    {:attribute-stats (->> (for [doc docs
+                                 [a v] doc]
+                             {a (count (c/vectorize-value v))})
+                           (apply merge-with + attribute-stats))
+     :sketches (merge sketches (stats/update-sketches sketches docs))}))
+
+(defn- stats-kvs [{:keys [attribute-stats sketches]}]
+  (concat [(kvi/meta-kv :crux/attribute-stats attribute-stats)
+           (kvi/meta-kv :crux/attribute-summaries (stats/->attribute-summaries sketches))]
+          (for [[a sketch] sketches]
+            (kvi/meta-kv (stats/attribute-sketch-key a) sketch))))
+
+(defn- compare-entries [[store-idx-a k-a _ n-a] [store-idx-b k-b _ n-b]]
+  (let [diff (Long/compare (long store-idx-a) (long store-idx-b))]
+    (if-not (zero? diff)
+      diff
+      (let [diff (mem/compare-buffers (mem/as-buffer k-a) (mem/as-buffer k-b))]
+        (if-not (zero? diff)
+          diff
+          (Long/compare (long n-a) (long n-b)))))))
+
+(defn- last-of-each-key
+  "Later writes to a key win, as they would going through the tx ingester."
+  [sorted-entries]
+  (lazy-seq
+   (when-let [[entry & more] (seq sorted-entries)]
+     (let [[store-idx ^bytes k] entry
+           [next-store-idx ^bytes next-k] (first more)]
+       (if (and more (= store-idx next-store-idx) (Arrays/equals k next-k))
+         (last-of-each-key more)
+         (cons entry (last-of-each-key more)))))))
+
+(defn- take-run!
+  "The KVs at the head of `!entries` for the given store, consuming them
+  as they're realised so that we don't hold on to the whole run."
+  [!entries store-idx]
+  (lazy-seq
+   (when-let [[entry-store-idx k v] (first @!entries)]
+     (when (= store-idx entry-store-idx)
+       (vswap! !entries next)
+       (cons [k v] (take-run! !entries store-idx))))))
+
+(defn- start-kv-store ^java.io.Closeable [kv-opts]
+  (-> (sys/prep-system {:kv-store (assoc kv-opts :crux/module `rocks/->kv-store)})
+      (sys/start-system)))
+
+(defn bulk-load
+  "Loads `tx-ops` into the RocksDB stores of a standalone node, as if
+  they'd been submitted in txs of `tx-size` ops. Only `:crux.tx/put`s
+  without an end valid time are supported, the stores must be empty and
+  the node mustn't be running.
+
+  Every tx loaded shares the same tx-time - the time the load started -
+  which is also the valid time of puts without one. The attribute stats the query
+  planner uses are written too, as the tx ingester would have.
+
+  `:tx-log`, `:document-store` and `:index-store` are the
+  `crux.rocksdb/->kv-store` args of each of the node's stores, which
+  may be the same. Returns the latest tx loaded."
+  [{:keys [tx-size], :or {tx-size 1000}, :as opts} tx-ops]
+  (let [kv-opts (vec (distinct (map opts stores)))
+        store->idx (into {} (for [store stores] [store (.indexOf ^java.util.List kv-opts (get opts store))]))
+        systems (mapv start-kv-store kv-opts)]
+    (try
+      (let [store->kv-store (into {} (for [store stores] [store (:kv-store (nth systems (store->idx store)))]))]
+        (when (or (kvi/read-meta (:tx-log store->kv-store) :crux.kv-tx-log/latest-submitted-tx-id)
+                  (kvi/latest-completed-tx (:index-store store->kv-store)))
+          (throw (err/illegal-arg ::stores-not-empty
+                                  {::err/message "Bulk loads need empty stores"})))
+
+        (let [tx-time (Date.)
+              !latest-tx-id (volatile! nil)
+              !stats (volatile! nil)
+              txs (->> tx-ops
+                       (map conform-put)
+                       (partition-all tx-size)
+                       (map-indexed (fn [tx-id puts]
+                                      (vreset! !latest-tx-id tx-id)
+                                      (vswap! !stats add-tx-stats puts)
+                                      [{::tx/tx-id tx-id, ::tx/tx-time tx-time} puts])))
+              entries (->> (concat (for [[tx puts] txs
+                                         [store kvs] (tx-kvs tx puts)
+                                         kv kvs]
+                                     [store kv])
+                                   (lazy-seq
+                                    (when-let [tx-id @!latest-tx-id]
+                                      (cons [:tx-log (kvi/meta-kv :crux.kv-tx-log/latest-submitted-tx-id tx-id)]
+                                            (for [kv (stats-kvs @!stats)]
+                                              [:index-store kv])))))
+                           (map-indexed (fn [n [store [k v]]]
+                                          [(store->idx store) (mem/->on-heap k) (mem/->on-heap v) n])))
+              !entries (volatile! (->> (cio/external-sort compare-entries entries)
+                                       (last-of-each-key)
+                                       (seq)))
+              sst-dir (cio/create-tmpdir "crux-bulk-load")]
+          (try
+            (dotimes [store-idx (count kv-opts)]
+              (log/infof "Ingesting SST files into %s..." (:db-dir (nth kv-opts store-idx)))
+              (rocks/ingest-sorted-kvs (:kv-store (nth systems store-idx))
+                                       (take-run! !entries store-idx)
+                                       (io/file sst-dir (str store-idx))))
+            (finally
+              (cio/delete-dir sst-dir)))
+
+          (when-let [tx-id @!latest-tx-id]
+            {::tx/tx-id tx-id, ::tx/tx-time tx-time})))
+      (finally
+        (run! cio/try-close systems)))))
@@ -0,0 +1,43 @@
+package crux.calcite;
+
+import org.apache.calcite.avatica.MissingResultsException;
+import org.apache.calcite.avatica.NoSuchStatementException;
+import org.apache.calcite.avatica.jdbc.JdbcMeta;
+import org.apache.calcite.avatica.remote.TypedValue;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Serves results in frames of at least frameSize rows, whatever fetch
+ * size the client asks for - Avatica clients default to 100, so a large
+ * result would otherwise take a round-trip per hundred rows.
+ */
+public class CruxJdbcMeta extends JdbcMeta {
+    private final int frameSize;
+
+    public CruxJdbcMeta(String url, Properties info, int frameSize) throws SQLException {
+        super(url, info);
+        this.frameSize = frameSize;
+    }
+
+    private int frameRowCount(int requestedRowCount) {
+        // negative means unlimited, zero means the client doesn't want any rows yet
+        return requestedRowCount > 0 ? Math.max(requestedRowCount, frameSize) : requestedRowCount;
+    }
+
+    @Override public ExecuteResult prepareAndExecute(StatementHandle h, String sql, long maxRowCount,
+                                                     int maxRowsInFirstFrame, PrepareCallback callback) throws NoSuchStatementException {
+        return super.prepareAndExecute(h, sql, maxRowCount, frameRowCount(maxRowsInFirstFrame), callback);
+    }
+
+    @Override public ExecuteResult execute(StatementHandle h, List<TypedValue> parameterValues,
+                                           int maxRowsInFirstFrame) throws NoSuchStatementException {
+        return super.execute(h, parameterValues, frameRowCount(maxRowsInFirstFrame));
+    }
+
+    @Override public Frame fetch(StatementHandle h, long offset, int fetchMaxRowCount)
+        throws NoSuchStatementException, MissingResultsException {
+        return super.fetch(h, offset, frameRowCount(fetchMaxRowCount));
+    }
+}
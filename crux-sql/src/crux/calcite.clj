@@ -12,7 +12,8 @@
             [clojure.string :as str]
             [clojure.instant :as inst])
   (:import clojure.lang.Symbol
-           [crux.calcite CruxTable CruxCalcitePrepareImpl$PreparedSQL]
+           crux.api.ICursor
+           [crux.calcite CruxTable CruxCalcitePrepareImpl$PreparedSQL CruxJdbcMeta]
            [crux.calcite.types ArbitraryFn SQLCondition SQLPredicate]
            java.util.UUID
            [java.lang.reflect Field Method]
@@ -20,17 +21,16 @@
            [java.util List Properties WeakHashMap]
            [org.apache.calcite.adapter.enumerable EnumUtils RexImpTable RexImpTable$NullAs RexToLixTranslator]
            org.apache.calcite.adapter.java.JavaTypeFactory
-           org.apache.calcite.avatica.jdbc.JdbcMeta
            [org.apache.calcite.avatica.remote Driver LocalService]
            [org.apache.calcite.avatica.server HttpServer HttpServer$Builder]
            org.apache.calcite.DataContext
            org.apache.calcite.jdbc.JavaTypeFactoryImpl
-           org.apache.calcite.linq4j.Enumerable
+           [org.apache.calcite.linq4j Enumerable Enumerator]
            [org.apache.calcite.linq4j.function Function0 Function1 Function2]
            [org.apache.calcite.linq4j.tree Expression Expressions MethodCallExpression ParameterExpression Primitive]
            org.apache.calcite.rel.RelFieldCollation
            [org.apache.calcite.rel.type RelDataType RelDataTypeFactory RelDataTypeFactory$Builder RelDataTypeField]
-           [org.apache.calcite.rex RexCall RexDynamicParam RexInputRef RexLiteral RexNode RexVariable]
+           [org.apache.calcite.rex RexCall RexDynamicParam RexInputRef RexLiteral RexNode RexUtil RexVariable]
            org.apache.calcite.runtime.SqlFunctions
            [org.apache.calcite.sql.fun SqlStdOperatorTable SqlTrimFunction$Flag]
            org.apache.calcite.sql.SqlKind
@@ -84,6 +84,12 @@
 (defn -like [s pattern]
   (SqlFunctions/like s pattern))
 
+(defn -starts-with? [s ^String prefix]
+  (and (string? s) (.startsWith ^String s prefix)))
+
+(defn -in [x & vs]
+  (boolean (some #(= x %) vs)))
+
 (defn -lambda [l & args]
   (condp instance? l
     Function1
@@ -206,6 +212,33 @@
         (throw (err/illegal-arg :cant-understand-call
                                 {::err/message (str "Can't understand call " n)})))))
 
+(defn- like-prefix
+  "`x LIKE 'prefix%'` needs neither a regex nor Calcite - if that's what
+  this is, returns `x` and the prefix."
+  [^RexNode n]
+  (when (= SqlKind/LIKE (.getKind n))
+    (let [operands (.getOperands ^RexCall n)
+          [x pattern] operands]
+      (when (and (= 2 (count operands)) (instance? RexLiteral pattern))
+        (when-let [[_ prefix] (re-matches #"([^%_\\]+)%" (str (.getValue2 ^RexLiteral pattern)))]
+          [x prefix])))))
+
+(defn- in-list
+  "`x IN (a, b, c)` reaches us as `x = a OR x = b OR x = c`, which we'd
+  otherwise turn into an `or` of three sub-queries - if that's what this
+  is, returns `x` followed by the values."
+  [^RexNode n]
+  (when (= SqlKind/OR (.getKind n))
+    (let [pairs (for [^RexNode operand (.getOperands ^RexCall n)]
+                  (when (= SqlKind/EQUALS (.getKind operand))
+                    (let [[a b] (.getOperands ^RexCall operand)
+                          [x v] (if (instance? RexInputRef a) [a b] [b a])]
+                      (when (and (instance? RexInputRef x) (not (RexUtil/containsInputRef v)))
+                        [x v]))))]
+      (when (and (every? some? pairs)
+                 (apply = (map #(.getIndex ^RexInputRef (first %)) pairs)))
+        (cons (ffirst pairs) (map second pairs))))))
+
 (def ^:private crux-custom-fns
   {"KEYWORD" keyword
    "UUID" #(UUID/fromString %)})
@@ -213,7 +246,13 @@
 (defn- ->ast
   "Turn the Calcite RexNode into a data-structure we can parse."
   [^RexNode n schema]
-  (or (when-let [op (pred-fns (.getKind n))]
+  (or (when-let [[x prefix] (like-prefix n)]
+        (SQLPredicate. 'crux.calcite/-starts-with? [(->ast x schema) prefix]))
+
+      (when-let [operands (in-list n)]
+        (SQLPredicate. 'crux.calcite/-in (map #(->ast % schema) operands)))
+
+      (when-let [op (pred-fns (.getKind n))]
         (SQLPredicate. op (map #(->ast % schema) (.-operands ^RexCall n))))
 
       (when-let [custom-fn (and (= SqlKind/OTHER_FUNCTION (.getKind n)) (crux-custom-fns (str (.-op ^RexCall n))))]
@@ -348,43 +387,48 @@
 (defn enrich-limit-and-offset [schema ^RexNode limit ^RexNode offset]
   (-> schema (enrich-limit limit) (enrich-offset offset)))
 
-(defn- coerce-num [v clazz]
-  (if-let [p (or (Primitive/of clazz) (Primitive/ofBox clazz))]
-    (.number p v)
-    v))
-
-(defn- transform-result [column-types tuple]
-  (let [tuple (map (fn [clazz v]
-                     (cond-> v
-                       (or (keyword? v) (uuid? v)) str
-                       (inst? v) inst-ms
-                       (and clazz (instance? clazz v)) identity
-                       (and clazz (number? v)) (coerce-num clazz)))
-                   column-types tuple)]
-    (if (= 1 (count tuple))
-      (first tuple)
-      (to-array tuple))))
+(defn- ->column-converter [^Class clazz]
+  (let [primitive (when clazz
+                    (or (Primitive/of clazz) (Primitive/ofBox clazz)))]
+    (fn [v]
+      (cond
+        (or (keyword? v) (uuid? v)) (str v)
+        (inst? v) (inst-ms v)
+        (and clazz (instance? clazz v)) v
+        (and primitive (number? v)) (.number ^Primitive primitive v)
+        :else v))))
+
+(deftype CruxEnumerator [^ICursor results converters ^:unsynchronized-mutable row]
+  Enumerator
+  (current [_] row)
+
+  (moveNext [_]
+    (if (.hasNext results)
+      (let [^List tuple (.next results)
+            width (.size tuple)]
+        (set! row (if (= 1 width)
+                    ((nth converters 0) (.get tuple 0))
+                    (let [row (object-array width)]
+                      (dotimes [n width]
+                        (aset row n ((nth converters n) (.get tuple n))))
+                      row)))
+        true)
+      (do (set! row nil)
+          false)))
+
+  (reset [_]
+    (throw (UnsupportedOperationException.)))
+
+  (close [_]
+    (.close results)))
 
 (defn- ->enumerator [node db-basis column-types q]
-  (proxy [org.apache.calcite.linq4j.AbstractEnumerable]
-      []
-    (enumerator []
-      (let [_ (log/debug "Executing query:" q)
-            results (crux/open-q (crux/db node db-basis) q)
-            next-results (atom (iterator-seq results))
-            current (atom nil)]
-        (proxy [org.apache.calcite.linq4j.Enumerator]
-            []
-          (current []
-            (transform-result column-types @current))
-          (moveNext []
-            (reset! current (first @next-results))
-            (swap! next-results next)
-            (boolean @current))
-          (reset []
-            (throw (UnsupportedOperationException.)))
-          (close []
-            (.close results)))))))
+  (let [converters (mapv ->column-converter column-types)]
+    (proxy [org.apache.calcite.linq4j.AbstractEnumerable]
+        []
+      (enumerator []
+        (log/debug "Executing query:" q)
+        (CruxEnumerator. (crux/open-q (crux/db node db-basis) q) converters nil)))))
 
 (defn ^Enumerable scan [node ^Pair schema+expressions column-types ^DataContext data-context]
   (try
@@ -517,13 +561,16 @@
                                    :spec ::sys/nat-int}
                             :scan-only? {:doc "Crux Table Scan Only"
                                          :default false
-                                         :spec ::sys/boolean}}
+                                         :spec ::sys/boolean}
+                            :frame-size {:doc "Minimum number of rows returned per JDBC frame, regardless of the client's fetch size"
+                                         :default 10000
+                                         :spec ::sys/pos-int}}
                 ::sys/deps {:node :crux/node}}
-  [{:keys [node port scan-only?]}]
+  [{:keys [node port scan-only? frame-size]}]
   (let [node-uuid (str (UUID/randomUUID))]
     (.put !crux-nodes node-uuid node)
     (let [server (.build (doto (HttpServer$Builder.)
-                           (.withHandler (LocalService. (JdbcMeta. "jdbc:crux:" (model-properties node-uuid scan-only?)))
+                           (.withHandler (LocalService. (CruxJdbcMeta. "jdbc:crux:" (model-properties node-uuid scan-only?) (int frame-size)))
                                          org.apache.calcite.avatica.remote.Driver$Serialization/PROTOBUF)
                            (.withPort port)))]
       (.start server)
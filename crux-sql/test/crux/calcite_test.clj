@@ -1,9 +1,12 @@
 (ns crux.calcite-test
   (:require [clojure.test :as t]
             [crux.api :as c]
+            [crux.calcite]
             [crux.fixtures :as fix :refer [*api* submit+await-tx]]
-            [crux.fixtures.calcite :as cf :refer [explain prepared-query query]])
-  (:import [java.time ZonedDateTime ZoneId]
+            [crux.fixtures.calcite :as cf :refer [explain prepared-query query]]
+            [crux.io :as cio])
+  (:import crux.calcite.CruxEnumerator
+           [java.time ZonedDateTime ZoneId]
            java.time.format.DateTimeFormatter))
 
 (defn- with-each-connection-type [f]
@@ -27,6 +30,19 @@
 (defn- inst->iso-str [^java.util.Date t]
   (.format (ZonedDateTime/ofInstant (.toInstant t) (ZoneId/of "UTC")) DateTimeFormatter/ISO_INSTANT))
 
+(t/deftest test-enumerator
+  (let [!closed? (atom false)
+        enumerator (CruxEnumerator. (cio/->cursor #(reset! !closed? true) [[1 "one"] [2 "two"]])
+                                    [identity identity]
+                                    nil)]
+    (t/is (.moveNext enumerator))
+    (t/is (= [1 "one"] (vec (.current enumerator))))
+    (t/is (.moveNext enumerator))
+    (t/is (= [2 "two"] (vec (.current enumerator))))
+    (t/is (false? (.moveNext enumerator)))
+    (.close enumerator)
+    (t/is @!closed?)))
+
 (t/deftest test-valid-time
   (let [id (java.util.UUID/randomUUID)
         tx1 (submit+await-tx [[:crux.tx/put {:crux.db/id id :name "Ivan" :homeworld (str id) :age 21 :alive true} #inst "2015"]
@@ -205,7 +221,13 @@
 
   (t/testing "in operand"
     (t/is (= #{{:name "Ivan"}}
-             (set (query "SELECT NAME FROM PERSON WHERE NAME in ('Ivan')")))))
+             (set (query "SELECT NAME FROM PERSON WHERE NAME in ('Ivan')"))))
+    (t/is (= #{{:name "Ivan"} {:name "Malcolm"}}
+             (set (query "SELECT NAME FROM PERSON WHERE NAME in ('Ivan', 'Malcolm', 'Mal')"))))
+    (t/is (= #{{:name "Malcolm"}}
+             (set (query "SELECT NAME FROM PERSON WHERE AGE in (25, 26) AND HOMEWORLD in ('Mars', 'Earth')"))))
+    (t/is (= #{{:name "Malcolm"}}
+             (set (query "SELECT NAME FROM PERSON WHERE NAME not in ('Ivan', 'Mal')")))))
 
   (t/testing "and"
     (t/is (= #{{:name "Ivan"}}
@@ -245,7 +267,19 @@
     (t/is (= #{{:name "Ivan"}}
              (set (query "SELECT NAME FROM PERSON WHERE NAME LIKE 'Iva%'"))))
     (t/is (= #{{:name "Ivan"} {:name "Malcolm"}}
-             (set (query "SELECT NAME FROM PERSON WHERE NAME LIKE 'Iva%' OR NAME LIKE 'Mal%'")))))
+             (set (query "SELECT NAME FROM PERSON WHERE NAME LIKE 'Iva%' OR NAME LIKE 'Mal%'"))))
+    (t/is (= #{{:name "Malcolm"}}
+             (set (query "SELECT NAME FROM PERSON WHERE NAME NOT LIKE 'Iva%'"))))
+    (t/is (= #{{:name "Ivan"}}
+             (set (query "SELECT NAME FROM PERSON WHERE NAME LIKE 'I_a%'"))))
+    (t/is (= #{}
+             (set (query "SELECT NAME FROM PERSON WHERE NAME LIKE 'Iva'")))))
+
+  (t/testing "between"
+    (t/is (= #{{:name "Ivan"}}
+             (set (query "SELECT NAME FROM PERSON WHERE AGE BETWEEN 20 AND 22"))))
+    (t/is (= #{{:name "Malcolm"}}
+             (set (query "SELECT NAME FROM PERSON WHERE AGE NOT BETWEEN 20 AND 22")))))
 
   (t/testing "arbitrary sql function"
     (t/is (= #{{:name "Iva"}}
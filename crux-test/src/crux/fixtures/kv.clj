@@ -20,10 +20,13 @@
 (def rocks-dep {:crux/module `crux.rocksdb/->kv-store, :db-dir-suffix "rocksdb"})
 (def lmdb-dep {:crux/module `crux.lmdb/->kv-store, :db-dir-suffix "lmdb", :env-mapsize 4096})
 (def memkv-dep {:crux/module `crux.mem-kv/->kv-store})
+(def skip-list-kv-dep {:crux/module `crux.mem-kv/->skip-list-kv-store})
 
 (defn with-each-kv-store* [f]
   (doseq [kv-opts [memkv-dep
+                   skip-list-kv-dep
                    rocks-dep
+                   (assoc rocks-dep :db-dir-suffix "rocksdb-cf", :column-families? true)
                    {:crux/module `crux.rocksdb.jnr/->kv-store
                     :db-dir-suffix "rocksdb-jnr"}
                    lmdb-dep
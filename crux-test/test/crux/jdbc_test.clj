@@ -6,6 +6,7 @@
             [crux.fixtures :as fix :refer [*api*]]
             [crux.fixtures.jdbc :as fj]
             [crux.fixtures.lubm :as fl]
+            [crux.jdbc :as j]
             [next.jdbc :as jdbc]
             [next.jdbc.result-set :as jdbcr]))
 
@@ -57,6 +58,107 @@
                (-> (db/fetch-docs doc-store #{doc-hash})
                    (get doc-hash)))))))
 
+(t/deftest test-batched-doc-submission
+  (let [doc-store (:document-store *api*)
+        ->docs (fn [v]
+                 (->> (for [n (range 250)]
+                        [(c/new-id (keyword (str "doc-" n))) {:crux.db/id (keyword (str "doc-" n)), :v v}])
+                      (into {})))
+        docs (->docs 1)]
+    (db/submit-docs doc-store (take 150 docs))
+
+    (t/testing "inserts and updates in the same batch"
+      (let [updated-docs (->docs 2)]
+        (db/submit-docs doc-store updated-docs)
+        (t/is (= updated-docs (db/fetch-docs doc-store (keys docs))))))
+
+    (t/testing "evictions alongside updates"
+      (let [[evicted-ids kept-ids] (split-at 100 (keys docs))]
+        (db/submit-docs doc-store (concat (for [id evicted-ids]
+                                            [id {:crux.db/id id, :crux.db/evicted? true}])
+                                          (select-keys (->docs 3) kept-ids)))
+        (t/is (= (select-keys (->docs 3) kept-ids)
+                 (db/fetch-docs doc-store (keys docs))))))
+
+    (t/is (= 150 (:num_docs (jdbc/execute-one! (:pool (:tx-log *api*))
+                                               ["SELECT count(EVENT_KEY) AS num_docs FROM tx_events WHERE TOPIC = 'docs' AND COMPACTED = 0"]
+                                               {:builder-fn jdbcr/as-unqualified-lower-maps}))))))
+
+(t/deftest test-paged-tx-log
+  (let [{:keys [pool dialect]} (:tx-log *api*)
+        txs (vec (for [n (range 5)]
+                   (fix/submit+await-tx [[:crux.tx/put {:crux.db/id (keyword (str "doc-" n))}]])))]
+    (with-open [tx-log (j/->ingest-only-tx-log {:connection-pool {:pool pool, :dialect dialect}
+                                                :fetch-size 2
+                                                :group-commit-max-txs 1})]
+      (with-open [log (db/open-tx-log tx-log nil)]
+        (t/is (= (map :crux.tx/tx-id txs)
+                 (map :crux.tx/tx-id (iterator-seq log)))))
+
+      (with-open [log (db/open-tx-log tx-log (:crux.tx/tx-id (nth txs 1)))]
+        (t/is (= (map :crux.tx/tx-id (drop 2 txs))
+                 (map :crux.tx/tx-id (iterator-seq log)))))
+
+      (t/testing "closing part-way through"
+        (with-open [log (db/open-tx-log tx-log nil)]
+          (t/is (= (:crux.tx/tx-id (first txs))
+                   (:crux.tx/tx-id (.next log))))))
+
+      (t/testing "errors reach the consumer rather than leaving it waiting"
+        (with-redefs [j/fetch-tx-page (fn [& _] (throw (AssertionError. "boom")))]
+          (with-open [log (db/open-tx-log tx-log nil)]
+            (t/is (thrown? AssertionError (doall (iterator-seq log))))))))))
+
+(t/deftest test-group-commit
+  (let [{:keys [pool dialect]} (:tx-log *api*)
+        docs (for [n (range 100)]
+               {:crux.db/id (keyword (str "doc-" n)), :n n})]
+    (db/submit-docs (:document-store *api*) (for [doc docs]
+                                              [(c/new-id doc) doc]))
+
+    (with-open [tx-log (j/->ingest-only-tx-log {:connection-pool {:pool pool, :dialect dialect}
+                                                :fetch-size 10
+                                                :group-commit-max-txs 16
+                                                :group-commit-max-duration (java.time.Duration/ofMillis 5)})]
+      (let [txs (->> (for [doc docs]
+                       (future
+                         @(db/submit-tx tx-log [[:crux.tx/put (c/new-id (:crux.db/id doc)) (c/new-id doc)]])))
+                     doall
+                     (mapv deref))]
+        (t/is (= 100 (count (into #{} (map :crux.tx/tx-id) txs))))
+        (t/is (every? :crux.tx/tx-time txs))
+
+        (t/testing "txs are in the log in tx-id order"
+          (with-open [log (db/open-tx-log tx-log nil)]
+            (let [logged (->> (iterator-seq log)
+                              (filter (comp (into #{} (map :crux.tx/tx-id) txs) :crux.tx/tx-id)))]
+              (t/is (= (sort (map :crux.tx/tx-id txs))
+                       (map :crux.tx/tx-id logged)))
+              (t/is (= (->> txs (sort-by :crux.tx/tx-id) (map :crux.tx/tx-time))
+                       (map :crux.tx/tx-time logged))))))
+
+        (t/testing "tx-times don't decrease in tx-id order, even though a batch may share one"
+          (t/is (apply <= (->> txs (sort-by :crux.tx/tx-id) (map (comp inst-ms :crux.tx/tx-time))))))
+
+        (.awaitTx *api* (last (sort-by :crux.tx/tx-id txs)) (java.time.Duration/ofSeconds 10))
+        (t/is (= 100 (count (api/q (api/db *api*) '{:find [?e] :where [[?e :n]]}))))
+
+        (t/testing "a db as of a shared tx-time sees every tx with that tx-time"
+          (doseq [[tx-time same-time-txs] (group-by :crux.tx/tx-time txs)]
+            (t/is (= (count (filter #(<= (inst-ms (:crux.tx/tx-time %)) (inst-ms tx-time)) txs))
+                     (count (api/q (api/db *api* {:crux.tx/tx-time tx-time})
+                                   '{:find [?e] :where [[?e :n]]})))
+                  (str (count same-time-txs) " txs at " tx-time))))))
+
+    (t/testing "submitting after close throws rather than blocking"
+      (let [tx-log (j/->ingest-only-tx-log {:connection-pool {:pool pool, :dialect dialect}
+                                            :fetch-size 10
+                                            :group-commit-max-txs 16
+                                            :group-commit-max-duration (java.time.Duration/ofMillis 5)})]
+        (.close ^java.io.Closeable tx-log)
+        (t/is (thrown? IllegalStateException
+                       (db/submit-tx tx-log [[:crux.tx/put (c/new-id :doc-0) (c/new-id (first docs))]])))))))
+
 (t/deftest test-micro-bench
   (when (Boolean/parseBoolean (System/getenv "CRUX_JDBC_PERFORMANCE"))
     (let [n 1000
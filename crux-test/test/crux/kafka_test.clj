@@ -103,3 +103,36 @@
                 (as-> tx (api/await-tx *api* tx (Duration/ofSeconds 5))))
               (t/is (api/entity (api/db *api*) :foo))
               (t/is (api/entity (api/db *api*) :bar)))))))))
+
+(t/deftest test-buffered-tx-consumer
+  (let [with-fixtures (t/join-fixtures [fk/with-cluster-tx-log-opts
+                                        fk/with-cluster-doc-store-opts
+                                        (fix/with-opts {:crux/tx-log {:tx-buffer-size 2}})])]
+    (with-fixtures
+      (fn []
+        (fix/with-node
+          (fn []
+            (let [txs (doall (for [n (range 10)]
+                               (api/submit-tx *api* [[:crux.tx/put {:crux.db/id (keyword (str "doc-" n))}]])))]
+              (api/await-tx *api* (last txs) (Duration/ofSeconds 10))
+              (t/is (every? #(api/entity (api/db *api*) (keyword (str "doc-" %))) (range 10)))
+
+              (let [status (api/status *api*)]
+                (t/is (contains? status :crux.kafka/tx-consumer-lag))
+                (t/is (zero? (:crux.kafka/buffered-txs status)))))))))))
+
+(t/deftest test-consumes-doc-partitions-in-parallel
+  (let [with-fixtures (t/join-fixtures [fk/with-cluster-tx-log-opts
+                                        fk/with-cluster-doc-store-opts
+                                        (fix/with-opts {::fk/doc-topic-opts {:topic-name (str "partitioned-doc-topic-" (java.util.UUID/randomUUID))
+                                                                             :num-partitions 4}})])]
+    (with-fixtures
+      (fn []
+        (fix/with-node
+          (fn []
+            (fix/submit+await-tx (for [n (range 100)]
+                                   [:crux.tx/put {:crux.db/id (keyword (str "doc-" n)), :n n}]))
+            (t/is (= 100 (count (api/q (api/db *api*) '{:find [?e] :where [[?e :n]]}))))
+
+            (t/testing "offsets are tracked per partition"
+              (t/is (< 1 (count (db/read-index-meta (:index-store *api*) :crux.tx-log/consumer-state)))))))))))
@@ -9,6 +9,7 @@
             [crux.fixtures :as f]
             [crux.fixtures.kv :as fkv]
             [crux.kv.index-store :as kvi]
+            [crux.memory :as mem]
             [crux.tx :as tx])
   (:import crux.codec.EntityTx
            crux.api.NodeOutOfSyncException
@@ -20,7 +21,7 @@
 
 (defmacro with-fresh-index-store [& body]
   `(fkv/with-kv-store [kv-store#]
-     (binding [*index-store* (kvi/->KvIndexStore kv-store# (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}))]
+     (binding [*index-store* (kvi/->KvIndexStore kv-store# (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}))]
        ~@body)))
 
 ;; NOTE: These tests does not go via the TxLog, but writes its own
@@ -212,3 +213,29 @@
 
         (t/is (thrown? NodeOutOfSyncException
                        (db/resolve-tx index-snapshot #::tx{:tx-time #inst "2023", :tx-id 1})))))))
+
+(t/deftest test-repeated-seeks-dont-grow-the-arena
+  (with-fresh-index-store
+    (let [docs (->> (for [n (range 100)]
+                      {:crux.db/id (keyword (str "e" n)), :n n})
+                    (into {} (map (juxt c/new-id identity))))
+          eid->content-hash (->> (for [[content-hash {:keys [crux.db/id]}] docs]
+                                   [(c/->value-buffer id) (c/->id-buffer content-hash)])
+                                 (into {}))]
+      (db/index-docs *index-store* docs)
+
+      (letfn [(arena-in-use []
+                (:arena-in-use (mem/allocation-stats)))
+              (seek-all! [index-snapshot]
+                (doseq [n (range 100)]
+                  (t/is (= 1 (count (db/ave index-snapshot :n n nil eid->content-hash)))))
+                (dotimes [_ 100]
+                  (t/is (= 100 (count (db/av index-snapshot :n nil))))
+                  (t/is (= 100 (count (db/ae index-snapshot :n nil))))))]
+        (let [before (arena-in-use)]
+          (with-open [index-snapshot (db/open-index-snapshot *index-store*)]
+            (seek-all! index-snapshot)
+            (seek-all! (db/open-nested-index-snapshot index-snapshot))
+
+            (t/testing "short prefixes don't take an arena chunk, even on nested snapshots"
+              (t/is (= before (arena-in-use))))))))))
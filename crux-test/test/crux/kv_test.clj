@@ -145,6 +145,28 @@
       (t/testing "deleting non existing key is noop"
         (kv/delete kv-store [(long->bytes 1)])))))
 
+(t/deftest test-write-batch []
+  (fkv/with-kv-store [kv-store]
+    (kv/store kv-store [[(long->bytes 1) (.getBytes "Crux")]
+                        [(long->bytes 2) (.getBytes "Crux")]])
+    (kv/write-batch kv-store
+                    [[(long->bytes 3) (.getBytes "Crux")]
+                     [(long->bytes 2) (.getBytes "XTDB")]]
+                    [(long->bytes 1) (long->bytes 2)])
+    (t/is (nil? (value kv-store (long->bytes 1))))
+    (t/is (= "XTDB" (String. ^bytes (value kv-store (long->bytes 2)))))
+    (t/is (= "Crux" (String. ^bytes (value kv-store (long->bytes 3)))))
+
+    (t/testing "keys beyond the last key are appended, those before it aren't"
+      (kv/store kv-store (for [n (range 10 1000)]
+                           [(long->bytes n) (long->bytes n)]))
+      (kv/store kv-store [[(long->bytes 5) (long->bytes 5)]
+                          [(long->bytes 2000) (long->bytes 2000)]
+                          [(long->bytes 1500) (long->bytes 1500)]])
+      (t/is (= (concat [2 3 5] (range 10 1000) [1500 2000])
+               (for [[k] (seek-and-iterate kv-store (constantly true) (long->bytes 0))]
+                 (bytes->long k)))))))
+
 (t/deftest test-checkpoint-and-restore-db
   (fkv/with-kv-store [kv-store]
     (fix/with-tmp-dir "kv-store-backup" [backup-dir]
@@ -0,0 +1,45 @@
+(ns crux.lmdb-test
+  (:require [clojure.test :as t]
+            [crux.codec :as c]
+            [crux.fixtures.kv :as fkv]
+            [crux.kv :as kv]
+            [crux.lmdb :as lmdb]))
+
+(defn- ->buffer [n]
+  (c/->value-buffer n))
+
+(defn- get-value [snapshot n]
+  (some-> (kv/get-value snapshot (->buffer n)) (c/decode-value-buffer)))
+
+(t/deftest test-read-txns-are-reused
+  ;; big enough that the store under the open snapshot doesn't need to resize the map
+  (binding [fkv/*kv-opts* (assoc fkv/lmdb-dep :env-mapsize (* 1024 1024))]
+    (fkv/with-kv-store [kv-store]
+      (kv/store kv-store [[(->buffer 1) (->buffer 1)]])
+
+      (with-open [snapshot (kv/new-snapshot kv-store)]
+        (t/is (= 1 (get-value snapshot 1)))
+        (t/is (= {:pooled-read-txns 0, :active-read-txns 1}
+                 (select-keys (lmdb/reader-stats kv-store) [:pooled-read-txns :active-read-txns]))))
+
+      (t/is (= {:pooled-read-txns 1, :active-read-txns 0}
+               (select-keys (lmdb/reader-stats kv-store) [:pooled-read-txns :active-read-txns])))
+
+      (t/testing "a renewed txn sees writes made since it was reset"
+        (kv/store kv-store [[(->buffer 2) (->buffer 2)]])
+
+        (with-open [snapshot (kv/new-snapshot kv-store)]
+          (t/is (= 0 (:pooled-read-txns (lmdb/reader-stats kv-store))))
+          (t/is (= 2 (get-value snapshot 2)))
+
+          (t/testing "snapshots are isolated from later writes"
+            (kv/store kv-store [[(->buffer 3) (->buffer 3)]])
+            (t/is (nil? (get-value snapshot 3)))))
+
+        (with-open [snapshot (kv/new-snapshot kv-store)]
+          (t/is (= 3 (get-value snapshot 3)))))
+
+      (t/testing "reset txns keep their reader slots"
+        (t/is (= 1 (:reader-slots-used (lmdb/reader-stats kv-store))))
+        (t/is (zero? (lmdb/clear-stale-readers kv-store)))
+        (t/is (zero? (:stale-readers-cleared (lmdb/reader-stats kv-store))))))))
@@ -0,0 +1,67 @@
+(ns crux.memory-test
+  (:require [clojure.test :as t]
+            [crux.codec :as c]
+            [crux.kv :as kv]
+            [crux.mem-kv :as mem-kv]
+            [crux.memory :as mem]))
+
+(t/deftest test-arena-allocation
+  (let [arena-in-use (:arena-in-use (mem/allocation-stats))]
+    (with-open [arena (mem/->arena)]
+      (let [buffers (vec (for [n (range 1000)]
+                           (doto (mem/allocate-from arena 64)
+                             (.putLong 0 n))))]
+        (t/is (= (range 1000) (map #(.getLong ^org.agrona.DirectBuffer % 0) buffers)))
+        (t/is (< arena-in-use (:arena-in-use (mem/allocation-stats))))
+
+        (t/testing "large buffers aren't taken from the arena"
+          (t/is (= (* 1024 1024) (.capacity (mem/allocate-from arena (* 1024 1024))))))))
+
+    (t/is (= arena-in-use (:arena-in-use (mem/allocation-stats))))
+
+    (t/testing "small arenas don't take a chunk"
+      (with-open [arena (mem/->arena 256)]
+        (dotimes [_ 4]
+          (mem/allocate-from arena 64))
+        (t/is (= arena-in-use (:arena-in-use (mem/allocation-stats))))
+
+        (mem/allocate-from arena 64)
+        (t/is (< arena-in-use (:arena-in-use (mem/allocation-stats)))))
+      (t/is (= arena-in-use (:arena-in-use (mem/allocation-stats)))))
+
+    (t/testing "copies"
+      (with-open [arena (mem/->arena)]
+        (let [from (mem/as-buffer (.getBytes "hello"))]
+          (t/is (mem/buffers=? from (mem/copy-to-arena arena from))))))))
+
+(t/deftest test-pooled-skip-list-chunks
+  (let [arena-in-use (:arena-in-use (mem/allocation-stats))
+        ->kvs (fn [ns]
+                (for [n ns]
+                  [(c/->value-buffer n) (c/->value-buffer (str "value-" n))]))]
+    (with-open [kv-store (mem-kv/->skip-list-kv-store {:pooled-chunks? true})]
+      (kv/store kv-store (->kvs (range 1000)))
+      (t/is (< arena-in-use (:arena-in-use (mem/allocation-stats)))))
+
+    (t/is (= arena-in-use (:arena-in-use (mem/allocation-stats))))
+
+    (t/testing "reused chunks start out empty"
+      (with-open [kv-store (mem-kv/->skip-list-kv-store {:pooled-chunks? true})]
+        (with-open [snapshot (kv/new-snapshot kv-store)
+                    i (kv/new-iterator snapshot)]
+          (t/is (nil? (kv/seek i mem/empty-buffer))))
+
+        (kv/store kv-store (->kvs [1 2]))
+        (with-open [snapshot (kv/new-snapshot kv-store)]
+          (t/is (= "value-2" (c/decode-value-buffer (kv/get-value snapshot (c/->value-buffer 2)))))
+          (t/is (nil? (kv/get-value snapshot (c/->value-buffer 3)))))))
+
+    (t/testing "reading a closed store throws rather than reading released chunks"
+      (let [kv-store (mem-kv/->skip-list-kv-store {:pooled-chunks? true})
+            _ (kv/store kv-store (->kvs [1 2]))
+            snapshot (kv/new-snapshot kv-store)
+            i (kv/new-iterator snapshot)]
+        (t/is (= 1 (c/decode-value-buffer (kv/seek i mem/empty-buffer))))
+        (.close ^java.io.Closeable kv-store)
+        (t/is (thrown? IllegalStateException (kv/next i)))
+        (t/is (thrown? IllegalStateException (kv/get-value snapshot (c/->value-buffer 2))))))))
@@ -16,7 +16,8 @@
     (t/testing "initial ingest values"
       (t/is (nil? (dropwizard/value (:tx-id-lag mets))))
       (t/is (zero? (dropwizard/meter-count (:docs-ingested-meter mets))))
-      (t/is (zero? (dropwizard/meter-count (:tx-ingest-timer mets)))))
+      (t/is (zero? (dropwizard/meter-count (:tx-ingest-timer mets))))
+      (t/is (not (contains? mets :tx-consumer-lag)) "only buffered Kafka tx-logs report consumer lag"))
 
     (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :test}]])
     (.close ^Closeable bus)
@@ -46,3 +47,17 @@
     (t/testing "post query timer values"
       (t/is (not (zero? (dropwizard/meter-count (:query-timer mets)))))
       (t/is (zero? (dropwizard/value (:current-query-count mets)))))))
+
+(t/deftest test-decoded-value-cache-metrics
+  (let [sys @(:!system *api*)
+        registry (dropwizard/new-registry)
+        mets (index-store-metrics/assign-listeners registry sys)]
+    (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :test, :map {:a 1}}]])
+
+    (dotimes [_ 2]
+      (t/is (= #{[{:a 1}]}
+               (api/q (api/db *api*) '{:find [m] :where [[_ :map m]]}))))
+
+    (t/is (pos? (dropwizard/value (:decoded-value-cache-misses mets))))
+    (t/is (pos? (dropwizard/value (:decoded-value-cache-hits mets))))
+    (t/is (pos? (dropwizard/value (:decoded-value-cache-bytes mets))))))
@@ -3647,6 +3647,117 @@
                                 (max problematic-ns workedaround-ns)))]
         (t/is (>= slowdown acceptable-limit-slowdown))))))
 
+(t/deftest test-cost-based-join-order
+  (fix/transact! *api* (for [n (range 20)]
+                         {:crux.db/id (keyword (str "node-" n))
+                          :edge (set (for [m [(inc n) (+ n 2) (+ n 3)]]
+                                       (keyword (str "node-" (mod m 20)))))
+                          :colour (if (even? n) "red" "blue")}))
+
+  (let [triangle-q '{:find [a b c]
+                     :where [[a :edge b]
+                             [b :edge c]
+                             [a :edge c]
+                             [a :colour "red"]]}
+        expected (api/q (api/db *api*) triangle-q)]
+    (t/is (seq expected))
+
+    (t/testing "same results as the default join order"
+      (t/is (= expected (api/q (api/db *api*) (assoc triangle-q :cost-based-join-order? true)))))
+
+    (t/testing "literals are still joined first"
+      (t/is (= "red"
+               (first (:vars-in-join-order
+                       (q/query-plan-for (assoc triangle-q :cost-based-join-order? true)
+                                         c/->value-buffer
+                                         (api/attribute-stats *api*)))))))))
+
+(t/deftest test-order-by-with-limit
+  (fix/transact! *api* (for [n (range 500)]
+                         {:crux.db/id (keyword (str "item-" n))
+                          :item/n (- 1000 (* 2 n))
+                          :item/group (mod n 7)}))
+
+  (let [db (api/db *api*)
+        all (api/q db '{:find [e n g]
+                        :where [[e :item/n n]
+                                [e :item/group g]]})]
+    (t/testing "top-k matches sorting everything"
+      (t/is (= (->> all (sort-by (juxt #(nth % 2) #(- (long (nth % 1))))) (drop 15) (take 10))
+               (api/q db '{:find [e n g]
+                           :where [[e :item/n n]
+                                   [e :item/group g]]
+                           :order-by [[g :asc] [n :desc]]
+                           :offset 15
+                           :limit 10}))))
+
+    (t/testing "ascending order on a single var"
+      (t/is (= (->> all (map #(nth % 1)) (sort) (take 5))
+               (map first (api/q db '{:find [n]
+                                      :where [[_ :item/n n]]
+                                      :order-by [[n :asc]]
+                                      :limit 5})))))
+
+    (t/testing "values of mixed types are still sorted"
+      (fix/transact! *api* [{:crux.db/id :half, :item/n 1.5}
+                            {:crux.db/id :neg, :item/n -2.5}])
+      (t/is (= [-2.5 1.5 2 4]
+               (map first (api/q (api/db *api*) '{:find [n]
+                                                  :where [[_ :item/n n]]
+                                                  :order-by [[n :asc]]
+                                                  :limit 4})))))))
+
+(t/deftest test-parallel-query
+  (fix/transact! *api* (for [n (range 2000)]
+                         {:crux.db/id (keyword (str "item-" n))
+                          :item/n n
+                          :item/group (mod n 7)}))
+
+  (let [q '{:find [e n g]
+            :where [[e :item/n n]
+                    [e :item/group g]
+                    [(< n 1500)]]}
+        db (api/db *api*)]
+    (t/testing "same results in the same order"
+      (t/is (= (with-open [res (api/open-q db q)]
+                 (vec (iterator-seq res)))
+               (with-open [res (api/open-q db (assoc q :parallel? true))]
+                 (vec (iterator-seq res))))))
+
+    (t/testing "order-by, offset and limit still apply"
+      (t/is (= (api/q db (assoc q :order-by '[[n :desc]] :offset 10 :limit 25))
+               (api/q db (assoc q :order-by '[[n :desc]] :offset 10 :limit 25 :parallel? true)))))
+
+    (t/testing "aggregates"
+      (t/is (= (api/q db '{:find [g (count e)]
+                           :where [[e :item/group g]]})
+               (api/q db '{:find [g (count e)]
+                           :where [[e :item/group g]]
+                           :parallel? true})))))
+
+  (let [run-partition @#'q/run-partition
+        !partitions (atom 0)
+        !running (atom 0)
+        q '{:find [e n]
+            :where [[e :item/n n]]
+            :parallel? true}]
+    (with-redefs-fn {#'q/run-partition (fn [& args]
+                                         (swap! !partitions inc)
+                                         (swap! !running inc)
+                                         (try
+                                           (apply run-partition args)
+                                           (finally
+                                             (swap! !running dec))))}
+      (fn []
+        (t/testing "runs more than one partition"
+          (t/is (= 2000 (count (api/q (api/db *api*) q))))
+          (t/is (< 1 @!partitions)))
+
+        (t/testing "closing the query early stops its partitions"
+          (with-open [res (api/open-q (api/db *api*) q)]
+            (t/is (some? (first (iterator-seq res)))))
+          (t/is (zero? @!running)))))))
+
 (comment
   ;; repro for https://github.com/juxt/crux/issues/443, don't have a solution yet though
   ;; replacing x with 0..50 and y with 0..100 takes a long time.
@@ -0,0 +1,48 @@
+(ns crux.rocksdb.bulk-load-test
+  (:require [clojure.java.io :as io]
+            [clojure.test :as t]
+            [crux.api :as crux]
+            [crux.db :as db]
+            [crux.fixtures :as fix]
+            [crux.rocksdb :as rocks]
+            [crux.rocksdb.bulk-load :as bl])
+  (:import crux.IllegalArgumentException))
+
+(defn- ->node-opts [db-dir index-opts]
+  {:crux/tx-log {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file db-dir "tx-log")}}
+   :crux/document-store {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file db-dir "doc-store")}}
+   :crux/index-store {:kv-store (merge {:crux/module `rocks/->kv-store, :db-dir (io/file db-dir "indexes")}
+                                       index-opts)}})
+
+(t/deftest test-bulk-load
+  (doseq [index-opts [{} {:column-families? true}]]
+    (fix/with-tmp-dir "bulk-load" [db-dir]
+      (let [bulk-load-opts (-> (->node-opts db-dir index-opts)
+                               (->> (into {} (map (fn [[k v]]
+                                                    [(keyword (name k)) (dissoc (:kv-store v) :crux/module)]))))
+                               (assoc :tx-size 10))
+            tx-ops (for [n (range 100)]
+                     [:crux.tx/put {:crux.db/id (keyword (str "ivan-" n)), :name "Ivan", :n n}])]
+
+        (t/is (= 9 (:crux.tx/tx-id (bl/bulk-load bulk-load-opts tx-ops))))
+
+        (t/testing "stores have to be empty"
+          (t/is (thrown? IllegalArgumentException (bl/bulk-load bulk-load-opts tx-ops))))
+
+        (with-open [node (crux/start-node (->node-opts db-dir index-opts))]
+          (t/is (= 9 (:crux.tx/tx-id (crux/latest-completed-tx node))))
+          (t/is (= 100 (count (crux/q (crux/db node) '{:find [e], :where [[e :name "Ivan"]]}))))
+          (t/is (= {:crux.db/id :ivan-42, :name "Ivan", :n 42}
+                   (crux/entity (crux/db node) :ivan-42)))
+
+          (t/testing "writes the attribute stats"
+            (t/is (= {:crux.db/id 100, :name 100, :n 100} (crux/attribute-stats node)))
+            (let [summaries (db/read-index-meta (:index-store node) :crux/attribute-summaries)]
+              (t/is (= 1.0 (Math/rint (get-in summaries [:name :distinct-values]))))
+              (t/is (< 90 (get-in summaries [:n :distinct-values]) 110))))
+
+          (t/testing "txs submitted after the bulk load follow on from it"
+            (let [submitted-tx (crux/submit-tx node [[:crux.tx/put {:crux.db/id :ivan-100, :name "Ivan", :n 100}]])]
+              (t/is (= 10 (:crux.tx/tx-id submitted-tx)))
+              (crux/await-tx node submitted-tx)
+              (t/is (= 101 (count (crux/q (crux/db node) '{:find [e], :where [[e :name "Ivan"]]})))))))))))
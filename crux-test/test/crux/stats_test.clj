@@ -0,0 +1,66 @@
+(ns crux.stats-test
+  (:require [clojure.test :as t]
+            [crux.stats :as stats])
+  (:import java.util.Date))
+
+(defn- ->stats [docs]
+  (let [sketches (stats/update-sketches nil docs)]
+    (-> (->> (for [doc docs
+                   [a v] doc]
+               {a (if (coll? v) (count v) 1)})
+             (apply merge-with +))
+        (stats/with-attribute-summaries (stats/->attribute-summaries sketches)))))
+
+(defn- approx= [expected actual]
+  (< (Math/abs (- (double expected) (double actual)))
+     (* 0.1 (double expected))))
+
+(t/deftest test-distinct-counts
+  (let [stats (->stats (for [n (range 10000)]
+                         {:crux.db/id (keyword (str "person-" n))
+                          :name (str "name-" (mod n 1000))
+                          :tags #{:a :b :c}}))]
+    (t/is (= 10000 (:name stats)))
+    (t/is (approx= 1000 (stats/distinct-values stats :name)))
+    (t/is (approx= 10000 (stats/distinct-entities stats :name)))
+    (t/is (= 3.0 (Math/rint (stats/distinct-values stats :tags))))
+
+    (t/testing "falls back to the value count without summaries"
+      (t/is (= 10000.0 (stats/distinct-values (with-meta stats nil) :name))))))
+
+(t/deftest test-sketches-are-incremental
+  (let [docs (for [n (range 2000)]
+               {:crux.db/id n, :n n})
+        sketches (-> nil
+                     (stats/update-sketches (take 1000 docs))
+                     (stats/update-sketches (drop 1000 docs)))]
+    (t/is (approx= 2000 (get-in (stats/->attribute-summaries sketches) [:n :distinct-values]))))
+
+  (t/testing "only returns the sketches of the docs' attributes"
+    (let [sketches (stats/update-sketches nil [{:crux.db/id :foo, :n 1}])]
+      (t/is (= #{:crux.db/id :m}
+               (set (keys (stats/update-sketches sketches [{:crux.db/id :bar, :m 2}]))))))))
+
+(t/deftest test-values-are-hashed-by-content
+  (let [stats (->stats (for [n (range 1000)]
+                         {:crux.db/id n
+                          :bytes (byte-array [1 2 3])
+                          :ref (keyword (str "ref-" (mod n 10)))}))]
+    (t/is (= 1.0 (Math/rint (stats/distinct-values stats :bytes))))
+    (t/is (= 10.0 (Math/rint (stats/distinct-values stats :ref))))))
+
+(t/deftest test-range-selectivity
+  (let [stats (->stats (for [n (range 10000)]
+                         {:crux.db/id n
+                          :n n
+                          :date (Date. (long n))
+                          :name (str n)}))]
+    ;; estimated from a sample, hence the wider margin
+    (t/is (< (Math/abs (- 0.25 (stats/range-selectivity stats :n '< 2500))) 0.1))
+    (t/is (< (Math/abs (- 0.75 (stats/range-selectivity stats :n '>= 2500))) 0.1))
+    (t/is (< (Math/abs (- 0.5 (stats/range-selectivity stats :date '> (Date. 5000)))) 0.1))
+    (t/is (< (stats/range-selectivity stats :n '= 42) 0.01))
+    (t/is (< 0.0 (stats/range-selectivity stats :n '< -1)))
+
+    (t/testing "no histogram for non-numeric values"
+      (t/is (nil? (stats/range-selectivity stats :name '< "5"))))))
@@ -7,6 +7,8 @@
             [crux.fixtures :as fix :refer [*api*]]
             [crux.tx :as tx]
             [crux.kv :as kv]
+            [crux.kv.index-store :as kvi]
+            [crux.stats :as stats]
             [crux.api :as api]
             [crux.rdf :as rdf]
             [crux.query :as q]
@@ -18,6 +20,7 @@
             [crux.tx.conform :as txc]
             [crux.api :as crux])
   (:import [java.util Date]
+           [java.util.concurrent CountDownLatch ExecutionException RejectedExecutionException ThreadPoolExecutor TimeUnit]
            [java.time Duration]
            [crux.codec EntityTx]))
 
@@ -258,6 +261,24 @@
     (db/index-tx-events in-flight-tx tx-events)
     (db/commit in-flight-tx)))
 
+(t/deftest test-direct-writes-survive-the-fork
+  (let [ivan {:crux.db/id :ivan, :name "Ivan"}
+        petr {:crux.db/id :petr, :name "Petr"}
+        {::tx/keys [tx-id]} (fix/submit+await-tx [[:crux.tx/put ivan]])
+        in-flight-tx (db/begin-tx (:tx-ingester *api*) {::tx/tx-time (Date.), ::tx/tx-id (inc tx-id)})]
+    (db/submit-docs (:document-store *api*) {(c/new-id petr) petr})
+
+    ;; a lone put can't observe its own writes, so it skips the fork
+    (t/is (db/index-tx-events in-flight-tx [[:crux.tx/put (c/new-id :petr) (c/new-id petr)]]))
+
+    (t/testing "the in-flight tx's db sees the earlier direct writes"
+      (t/is (= petr (api/entity (api/db in-flight-tx) :petr))))
+
+    (t/is (db/index-tx-events in-flight-tx [[:crux.tx/match (c/new-id :ivan) (c/new-id ivan)]]))
+    (db/commit in-flight-tx)
+
+    (t/is (= petr (api/entity (api/db *api*) :petr)))))
+
 (t/deftest test-handles-legacy-evict-events
   (let [{put-tx-time ::tx/tx-time, put-tx-id ::tx/tx-id} (fix/submit+await-tx [[:crux.tx/put picasso #inst "2018-05-21"]])
 
@@ -1113,3 +1134,158 @@
                      {:find '[?e ?name]
                       :where '[[?e :name ?name]]
                       :args [{:?e (int 10)}]})))))
+
+(t/deftest test-group-commit
+  (fix/with-opts {:crux/tx-ingester {:group-commit-max-txs 8}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (let [txs (vec (for [n (range 20)]
+                           (crux/submit-tx *api* [[:crux.tx/put {:crux.db/id (keyword (str "ivan-" (mod n 5))), :n n}]])))
+                last-tx (crux/submit-tx *api* [[:crux.tx/match :ivan-0 {:crux.db/id :ivan-0, :n 15}]
+                                               [:crux.tx/put {:crux.db/id :petr}]])]
+            (crux/await-tx *api* last-tx)
+
+            (t/is (= last-tx (crux/latest-completed-tx *api*)))
+
+            (t/testing "every tx is indexed, in order"
+              (t/is (= (set (for [n (range 15 20)]
+                              [(keyword (str "ivan-" (mod n 5))) n]))
+                       (crux/q (crux/db *api*) '{:find [?e ?n], :where [[?e :n ?n]]})))
+
+              (t/is (= (->> (filter #(zero? (mod % 5)) (range 20))
+                            (map #(get txs %))
+                            (map ::tx/tx-id))
+                       (->> (crux/entity-history (crux/db *api*) :ivan-0 :asc)
+                            (map ::tx/tx-id)))))
+
+            (t/testing "match sees the writes of earlier txs in the batch"
+              (t/is (crux/tx-committed? *api* last-tx))
+              (t/is (= {:crux.db/id :petr} (crux/entity (crux/db *api*) :petr))))))))))
+
+(t/deftest test-prefetch-docs-ahead
+  (let [fetch-docs db/fetch-docs
+        !prefetched-doc-ids (atom #{})]
+    (with-redefs-fn {#'db/fetch-docs (fn [document-store ids]
+                                       (if (.startsWith (.getName (Thread/currentThread)) "crux-tx-doc-prefetch")
+                                         (do
+                                           (swap! !prefetched-doc-ids into ids)
+                                           (throw (Exception. "prefetch failed")))
+                                         (fetch-docs document-store ids)))}
+      (fn []
+        (fix/with-tmp-dir "prefetch" [db-dir]
+          (fix/with-opts {:crux/tx-log {:crux/module 'crux.jdbc/->tx-log
+                                        :connection-pool :crux.jdbc/connection-pool
+                                        :prefetch-tx-count 4
+                                        :poll-sleep-duration (Duration/ofMillis 10)}
+                          :crux/document-store {:crux/module 'crux.jdbc/->document-store
+                                                :connection-pool :crux.jdbc/connection-pool}
+                          :crux.jdbc/connection-pool {:dialect 'crux.jdbc.h2/->dialect
+                                                      :db-spec {:dbname (str (io/file db-dir "prefetch"))}}}
+            (fn []
+              (fix/with-node
+                (fn []
+                  (let [puts (vec (for [n (range 10)]
+                                    (crux/submit-tx *api* [[:crux.tx/put {:crux.db/id :ivan, :n n}]])))
+                        match-tx (crux/submit-tx *api* [[:crux.tx/match :ivan {:crux.db/id :ivan, :n 3}]
+                                                        [:crux.tx/put {:crux.db/id :petr}]])
+                        last-tx (crux/submit-tx *api* [[:crux.tx/put {:crux.db/id :ivan, :n 10}]])]
+                    (crux/await-tx *api* last-tx)
+
+                    (t/testing "prefetches, a failed prefetch only being logged"
+                      (t/is (seq @!prefetched-doc-ids))
+                      (t/is (= {:crux.db/id :ivan, :n 10} (crux/entity (crux/db *api*) :ivan))))
+
+                    (t/testing "txs are still indexed in order"
+                      (t/is (= (map ::tx/tx-id (conj puts last-tx))
+                               (->> (crux/entity-history (crux/db *api*) :ivan :asc)
+                                    (map ::tx/tx-id)))))
+
+                    (t/testing "failed txs are still aborted"
+                      (t/is (false? (crux/tx-committed? *api* match-tx)))
+                      (t/is (nil? (crux/entity (crux/db *api*) :petr))))))))))))))
+
+(t/deftest test-stats-executor-rejects-once-shut-down
+  (let [^ThreadPoolExecutor executor (#'tx/->stats-executor)
+        latch (CountDownLatch. 1)]
+    (.execute executor ^Runnable #(.await latch))
+    (dotimes [_ (.remainingCapacity (.getQueue executor))]
+      (.execute executor ^Runnable (fn [])))
+
+    (let [blocked (future (.execute executor ^Runnable (fn [])))]
+      (Thread/sleep 200)
+      (t/is (not (realized? blocked)) "blocks while the queue's full")
+
+      (.shutdown executor)
+      (t/is (thrown? RejectedExecutionException
+                     (try
+                       (deref blocked 5000 nil)
+                       (catch ExecutionException e
+                         (throw (.getCause e)))))))
+
+    (.countDown latch)
+    (t/is (.awaitTermination executor 5000 TimeUnit/MILLISECONDS))))
+
+(t/deftest test-query-engine-keeps-refreshed-summaries
+  (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan, :name "Ivan"}]])
+  @(.submit ^ThreadPoolExecutor (get-in *api* [:tx-ingester :stats-executor]) ^Runnable (fn []))
+
+  (let [!summaries (get-in *api* [:query-engine :!attribute-summaries])]
+    ;; the refresh is announced on the bus, which delivers asynchronously
+    (t/is (loop [n 50]
+            (or (contains? @!summaries :name)
+                (when (pos? n)
+                  (Thread/sleep 100)
+                  (recur (dec n))))))
+    (t/is (= (db/read-index-meta (:index-store *api*) :crux/attribute-summaries)
+             @!summaries))))
+
+(t/deftest test-group-commit-flushes-stats-on-close
+  (fix/with-tmp-dir "group-commit" [db-dir]
+    (let [opts {:crux/tx-log {:kv-store {:crux/module 'crux.rocksdb/->kv-store, :db-dir (io/file db-dir "tx-log")}}
+                :crux/document-store {:kv-store {:crux/module 'crux.rocksdb/->kv-store, :db-dir (io/file db-dir "doc-store")}}
+                :crux/index-store {:kv-store {:crux/module 'crux.rocksdb/->kv-store, :db-dir (io/file db-dir "indexes")}}
+                :crux/tx-ingester {:group-commit-max-txs 8}}]
+      (with-open [node (crux/start-node opts)]
+        (->> (doall (for [n (range 20)]
+                      (crux/submit-tx node [[:crux.tx/put {:crux.db/id (keyword (str "ivan-" n)), :n n}]])))
+             (last)
+             (crux/await-tx node)))
+
+      (with-open [node (crux/start-node opts)]
+        (t/is (= {:crux.db/id 20, :n 20} (crux/attribute-stats node)))
+        (t/is (some? (db/read-index-meta (:index-store node) (stats/attribute-sketch-key :n))))
+        (t/is (contains? (db/read-index-meta (:index-store node) :crux/attribute-summaries) :n))))))
+
+(t/deftest test-group-commit-timer-doesnt-flush-mid-commit
+  (let [index-docs db/index-docs
+        index-entity-txs db/index-entity-txs
+        flush-group-commit kvi/flush-group-commit
+        !committing? (atom false)
+        !mid-commit-flushes (atom 0)]
+    (with-redefs-fn {#'db/index-docs (fn [index-store docs]
+                                       (reset! !committing? true)
+                                       ;; widens the window the timer could flush in
+                                       (Thread/sleep 1)
+                                       (index-docs index-store docs))
+                     #'db/index-entity-txs (fn [index-store tx etxs]
+                                             (try
+                                               (index-entity-txs index-store tx etxs)
+                                               (finally
+                                                 (reset! !committing? false))))
+                     #'kvi/flush-group-commit (fn [index-store]
+                                                (when @!committing?
+                                                  (swap! !mid-commit-flushes inc))
+                                                (flush-group-commit index-store))}
+      (fn []
+        (fix/with-opts {:crux/tx-ingester {:group-commit-max-txs 1000
+                                           :group-commit-max-duration (Duration/ofMillis 1)}}
+          (fn []
+            (fix/with-node
+              (fn []
+                (let [txs (vec (for [n (range 100)]
+                                 (crux/submit-tx *api* [[:crux.tx/put {:crux.db/id (keyword (str "ivan-" n)), :n n}]])))]
+                  (crux/await-tx *api* (last txs))
+
+                  (t/is (= 100 (count (crux/q (crux/db *api*) '{:find [?e], :where [[?e :n]]}))))
+                  (t/is (zero? @!mid-commit-flushes)))))))))))